@@ -0,0 +1,65 @@
+package org.friendlyfiles;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Limits how many directories are listed at the same time on each device, so that a walk spanning several disks keeps
+ * all of them busy without thrashing any one of them.  A spinning disk gets
+ * {@link WalkOptions#getRotationalDeviceConcurrency()} listings at a time, since every extra one makes it seek;
+ * everything else gets {@link WalkOptions#getDeviceConcurrency()}.
+ * <p>
+ * Devices are told apart by the device number that the platform stores with every file (`st_dev` on Unix).
+ * {@link DirectoryLister} reads it along with the other attributes of each entry, so this costs no extra file system
+ * calls.  On platforms without device numbers, the lister picks something else that is equal for all the directories
+ * on a device.
+ */
+final class DeviceBudget {
+    private final WalkOptions options;
+    private final ConcurrentHashMap<Object, Semaphore> permits = new ConcurrentHashMap<>();
+
+    /**
+     * @param options the parameters of the walk
+     */
+    DeviceBudget(WalkOptions options) {
+        this.options = options;
+    }
+
+    /**
+     * Gets the permits for listing directories on a device, creating them the first time the device is seen.
+     * @param device the device, as in {@link DirectoryLister.Directory#device}
+     * @return the permits
+     */
+    Semaphore permitsFor(Object device) {
+        return permits.computeIfAbsent(device, d -> new Semaphore(
+                isRotational(d) ? options.getRotationalDeviceConcurrency() : options.getDeviceConcurrency()));
+    }
+
+    /**
+     * Checks whether a device is a spinning disk.  Only Linux tells us this, through {@code /sys/dev/block}.
+     * @param device the device, as in {@link DirectoryLister.Directory#device}
+     * @return true if the device is known to be a spinning disk
+     */
+    private static boolean isRotational(Object device) {
+        if (!(device instanceof Long)) return false;
+        long dev = (Long) device;
+        // This is how glibc's `major` and `minor` macros split up a device number.
+        long major = ((dev >>> 32) & 0xfffff000L) | ((dev >>> 8) & 0xfffL);
+        long minor = ((dev >>> 12) & 0xffffff00L) | (dev & 0xffL);
+        Path block = Paths.get("/sys/dev/block", major + ":" + minor);
+        try {
+            Path flag = block.resolve("queue/rotational");
+            if (!Files.exists(flag)) {
+                // Partitions don't have a queue of their own; it belongs to the disk they are on.
+                flag = block.toRealPath().getParent().resolve("queue/rotational");
+            }
+            List<String> lines = Files.readAllLines(flag);
+            return !lines.isEmpty() && lines.get(0).trim().equals("1");
+        } catch (IOException | RuntimeException ignored) {
+            // Network mounts, memory filesystems, and the like have no block device.
+            return false;
+        }
+    }
+}
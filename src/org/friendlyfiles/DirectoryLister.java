@@ -0,0 +1,187 @@
+package org.friendlyfiles;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lists a single directory on behalf of a walker; this is the part of a walk that is shared by all of the crawler
+ * backends in {@link WalkOptions.Backend}.
+ * <p>
+ * Each entry is stat'ed exactly once.  The attributes read while listing a directory are used both for the entry
+ * itself and for deciding whether to descend into it.  On Unix, they include the device number (`st_dev`), which
+ * tells the devices apart for the {@link DeviceBudget} and finds mount points without looking up any {@link FileStore}.
+ */
+final class DirectoryLister {
+    private final FileBatchQueue result;
+    private final WalkOptions options;
+    private final WalkStats stats;
+    private final DeviceBudget deviceBudget;
+
+    // Whether the platform can tell us the device number of a file along with its other attributes.
+    private static final boolean hasUnixView =
+            FileSystems.getDefault().supportedFileAttributeViews().contains("unix");
+    private static final String UNIX_ATTRIBUTES = "unix:dev,size,lastModifiedTime,isDirectory,isRegularFile";
+
+    /**
+     * A directory waiting to be listed, along with the device it is on.
+     */
+    static final class Directory {
+        final Path path;
+        final Object device;
+
+        Directory(Path path, Object device) {
+            this.path = path;
+            this.device = device;
+        }
+    }
+
+    /**
+     * The attributes of an entry that matter to a walk, all read in a single call to the filesystem.
+     */
+    private static final class Entry {
+        boolean isDirectory;
+        boolean isRegularFile;
+        long size;
+        long timestamp;
+        // The device number (`st_dev`), or null if the platform doesn't have one.
+        Object device;
+    }
+
+    /**
+     * @param result the queue into which to put each file's information
+     * @param options the parameters of the walk
+     * @param stats the statistics to count file system calls in
+     */
+    DirectoryLister(FileBatchQueue result, WalkOptions options, WalkStats stats) {
+        this.result = result;
+        this.options = options;
+        this.stats = stats;
+        this.deviceBudget = new DeviceBudget(options);
+    }
+
+    /**
+     * @return the parameters of the walk
+     */
+    WalkOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * @return the limits on concurrent listings for the devices in this walk
+     */
+    DeviceBudget getDeviceBudget() {
+        return deviceBudget;
+    }
+
+    /**
+     * Finds out which device the top of a file tree is on.
+     * @param topPath the top of the file tree
+     * @return the directory to start the walk with
+     */
+    Directory rootOf(Path topPath) {
+        try {
+            stats.addStatCalls(1);
+            Entry entry = readEntry(topPath);
+            if (entry.device != null) return new Directory(topPath, entry.device);
+            stats.addStatCalls(1);
+            return new Directory(topPath, fallbackDeviceOf(topPath));
+        } catch (IOException ignored) {
+            // The listing will fail too, so the device doesn't matter.
+            return new Directory(topPath, topPath.toAbsolutePath().getRoot());
+        }
+    }
+
+    /**
+     * Passes the files and subdirectories of a directory to the queue.  The directory itself is not passed to the
+     * queue.
+     * @param dir the directory to list
+     * @return the subdirectories that should be walked next
+     */
+    List<Directory> list(Directory dir) {
+        ArrayList<Directory> subdirectories = new ArrayList<>();
+        FileBatchQueue.Producer producer = result.acquireProducer();
+        int statCalls = 0;
+        stats.addDirectoryReads(1);
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir.path)) {
+            for (Path p : entries) {
+                Entry entry;
+                try {
+                    ++statCalls;
+                    entry = readEntry(p, LinkOption.NOFOLLOW_LINKS);
+                } catch (IOException ignored) {
+                    // The entry disappeared or cannot be read; there is nothing to index.
+                    continue;
+                }
+                if (entry.isDirectory) {
+                    // Excluded subtrees are pruned here, so they are never listed.
+                    if (options.isExcluded(p)) continue;
+                    producer.emit(p.toString(), -1L, entry.timestamp);
+                    Object device = entry.device;
+                    if (device == null) {
+                        try {
+                            ++statCalls;
+                            device = fallbackDeviceOf(p);
+                        } catch (IOException ignored) {
+                            continue;
+                        }
+                    }
+                    // A mount point is indexed, but what is mounted on it is not.
+                    if (!options.getCrossFilesystems() && !device.equals(dir.device)) continue;
+                    subdirectories.add(new Directory(p, device));
+                } else if (entry.isRegularFile) {
+                    producer.emit(p.toString(), entry.size, entry.timestamp);
+                }
+            }
+        } catch (IOException | DirectoryIteratorException ignored) {
+            // We are not allowed to list this directory, so we skip it like `Files.walkFileTree` would.
+        } finally {
+            result.releaseProducer(producer);
+            stats.addStatCalls(statCalls);
+        }
+        return subdirectories;
+    }
+
+    /**
+     * Reads the attributes of an entry.  Where the platform has device numbers, they come with the other attributes,
+     * so this is always one call to the filesystem.
+     * @param path the path of the entry
+     * @param linkOptions how to handle symbolic links
+     * @return the attributes
+     * @throws IOException if the attributes can't be read
+     */
+    private static Entry readEntry(Path path, LinkOption... linkOptions) throws IOException {
+        Entry entry = new Entry();
+        if (hasUnixView) {
+            Map<String, Object> attrs = Files.readAttributes(path, UNIX_ATTRIBUTES, linkOptions);
+            entry.isDirectory = (Boolean) attrs.get("isDirectory");
+            entry.isRegularFile = (Boolean) attrs.get("isRegularFile");
+            entry.size = (Long) attrs.get("size");
+            entry.timestamp = ((FileTime) attrs.get("lastModifiedTime")).toInstant().getEpochSecond();
+            entry.device = attrs.get("dev");
+        } else {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class, linkOptions);
+            entry.isDirectory = attrs.isDirectory();
+            entry.isRegularFile = attrs.isRegularFile();
+            entry.size = attrs.size();
+            entry.timestamp = attrs.lastModifiedTime().toInstant().getEpochSecond();
+        }
+        return entry;
+    }
+
+    /**
+     * Identifies the device of a directory on a platform without device numbers.  If the walk stays on one
+     * filesystem, this has to be exact, so it is the directory's {@link FileStore}; otherwise, each filesystem root
+     * (e.g. a drive letter) counts as one device.
+     * @param dir the directory
+     * @return an object that is equal for all directories on the same device
+     * @throws IOException if the filesystem can't be found
+     */
+    private Object fallbackDeviceOf(Path dir) throws IOException {
+        return options.getCrossFilesystems() ? dir.toAbsolutePath().getRoot() : Files.getFileStore(dir);
+    }
+}
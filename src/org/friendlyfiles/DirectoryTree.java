@@ -0,0 +1,321 @@
+package org.friendlyfiles;
+
+import org.roaringbitmap.RoaringBitmap;
+
+import java.io.File;
+import java.util.*;
+import java.util.function.IntConsumer;
+
+/**
+ * Links the items of a {@link PostingList} to the directories that contain them, so that the contents of a directory
+ * can be found without matching paths.
+ * <p>
+ * Each item has the index of its parent directory, and each directory has the index of its first child, whose next
+ * sibling leads to the rest of its children.  Adding an item only changes its parent's first child, so the tree is
+ * kept up to date as items are added and removed.  A removed item stays linked to its siblings and is skipped when the
+ * tree is walked, so removing never has to search a long list of siblings.
+ * <p>
+ * Directories are found by their paths through a {@link PathIndex} of their own, which holds only hashes and
+ * indices and compares paths in the {@link PathStore}, so the tree keeps no strings for the items.  The roots of a
+ * walk are not items of the posting list.  The items directly beneath a root, and any other item whose parent has not
+ * been added (yet), are kept in a chain of their own under the path of the parent.  When a directory is added, it
+ * takes over the chain for its path.  There are only a few such chains, one for each root in the usual case.
+ * <p>
+ * When the items are numbered in depth-first order (see {@link PostingList#sortDepthFirst}), everything beneath a
+ * directory has the indices right after the directory's own, so the subtree is a single range.  The tree keeps the
+ * end of that range for each item that was numbered that way, and a subtree is found by adding up the ranges of its
+ * children instead of visiting every item.  Items added later are appended after the ranges.  Each of their ancestors
+ * is marked as having new descendants, and only those ancestors are visited to pick them up.
+ */
+final class DirectoryTree {
+    private static final int NONE = -1;
+    private static final int REMOVED = -2;
+
+    private int[] parents = new int[16];
+    private int[] firstChildren = new int[16];
+    private int[] nextSiblings = new int[16];
+    private int size = 0;
+    private final BitSet directories = new BitSet();
+    // The indices of the directories, by their paths in the store.
+    private final PathIndex directoryIds = new PathIndex();
+    // The first of the items whose parent isn't in the tree, by the path of the parent.
+    private final HashMap<String, Integer> orphans = new HashMap<>();
+    // The items before this one are numbered depth-first; each one's subtree ends right before its entry in
+    // `subtreeEnds`.
+    private int ordered = 0;
+    private int[] subtreeEnds = new int[0];
+    private final RoaringBitmap removedOrderedItems = new RoaringBitmap();
+    // The directories that have descendants at or after `ordered`.
+    private final BitSet newDescendants = new BitSet();
+
+    /**
+     * Builds the tree for every item in a posting list at once.  The directories are looked up before any item is
+     * linked, so the order in which the items were added doesn't matter.  Then the tree finds out how many of the
+     * items are numbered depth-first.
+     * @param paths the paths of the items
+     * @param sizes the sizes of the items, which are -1 for directories
+     * @return the tree
+     */
+    static DirectoryTree build(PathStore paths, LongColumn sizes) {
+        DirectoryTree tree = new DirectoryTree();
+        tree.ensureCapacity(paths.size());
+        for (int i = 0; i < paths.size(); ++i) {
+            if (paths.isRemoved(i) || sizes.get(i) != -1) continue;
+            tree.directories.set(i);
+            tree.directoryIds.add(paths.get(i).hashCode(), i);
+        }
+        Arrays.fill(tree.firstChildren, NONE);
+        for (int i = 0; i < paths.size(); ++i) {
+            if (paths.isRemoved(i)) {
+                tree.parents[i] = REMOVED;
+                tree.nextSiblings[i] = NONE;
+            } else {
+                tree.link(i, parentOf(paths.get(i)), paths);
+            }
+        }
+        tree.size = paths.size();
+        tree.findOrderedItems();
+        return tree;
+    }
+
+    /**
+     * Lists the items so that each directory comes right before everything beneath it.  The items directly beneath
+     * the same directory (or root) are listed in order of their indices.  Removed items are left out.
+     * @return the indices of the items in depth-first order
+     */
+    int[] depthFirstOrder() {
+        int[] order = new int[size];
+        int count = 0;
+        int[] stack = new int[64];
+        int depth = 0;
+        // The items without a parent are pushed last-first, so that they are popped in order.
+        for (int i = size - 1; i >= 0; --i) {
+            if (parents[i] != NONE) continue;
+            if (depth == stack.length) stack = Arrays.copyOf(stack, depth * 2);
+            stack[depth++] = i;
+        }
+        int[] children = new int[64];
+        while (depth > 0) {
+            int item = stack[--depth];
+            order[count++] = item;
+            int numChildren = 0;
+            for (int child = firstChildren[item]; child != NONE; child = nextSiblings[child]) {
+                if (parents[child] == REMOVED) continue;
+                if (numChildren == children.length) children = Arrays.copyOf(children, numChildren * 2);
+                children[numChildren++] = child;
+            }
+            Arrays.sort(children, 0, numChildren);
+            if (depth + numChildren > stack.length) stack = Arrays.copyOf(stack, Math.max(depth + numChildren, depth * 2));
+            for (int i = numChildren - 1; i >= 0; --i) {
+                stack[depth++] = children[i];
+            }
+        }
+        return Arrays.copyOf(order, count);
+    }
+
+    /**
+     * Finds the longest run of items from index 0 that are numbered depth-first, and where each of their subtrees
+     * ends.  This is every item right after {@link PostingList#sortDepthFirst}, and none of the items added since.
+     */
+    private void findOrderedItems() {
+        // The items are numbered depth-first up to the first one that is listed before an item with a lower index.
+        int[] order = depthFirstOrder();
+        ordered = size;
+        int lowest = Integer.MAX_VALUE;
+        for (int i = order.length - 1; i >= 0; --i) {
+            if (order[i] > lowest) ordered = Math.min(ordered, order[i]);
+            lowest = Math.min(lowest, order[i]);
+        }
+
+        // In that run, every child comes after its parent, so going backwards finishes each subtree before its
+        // parent's.  Removed items in the middle of a range are taken out by `subtree`.
+        subtreeEnds = new int[ordered];
+        for (int i = ordered - 1; i >= 0; --i) {
+            subtreeEnds[i] = Math.max(subtreeEnds[i], i + 1);
+            if (parents[i] == REMOVED) {
+                removedOrderedItems.add(i);
+            } else if (parents[i] >= 0 && parents[i] < ordered) {
+                subtreeEnds[parents[i]] = Math.max(subtreeEnds[parents[i]], subtreeEnds[i]);
+            }
+        }
+        for (int i = ordered; i < size; ++i) {
+            if (parents[i] != REMOVED) markNewDescendant(parents[i]);
+        }
+    }
+
+    /**
+     * Adds an item beneath its parent directory.
+     * @param index the index of the item, which must come after every item already in the tree
+     * @param path the path of the item
+     * @param isDirectory whether the item is a directory
+     * @param paths the paths of the items, including this one
+     */
+    void add(int index, String path, boolean isDirectory, PathStore paths) {
+        ensureCapacity(index + 1);
+        for (int i = size; i < index; ++i) {
+            // These items were not added through the tree, so they can't be reached from it.
+            parents[i] = REMOVED;
+            firstChildren[i] = nextSiblings[i] = NONE;
+        }
+        size = index + 1;
+        firstChildren[index] = NONE;
+        link(index, parentOf(path), paths);
+        markNewDescendant(parents[index]);
+        if (!isDirectory) return;
+
+        directories.set(index);
+        directoryIds.add(path.hashCode(), index);
+        Integer orphan = orphans.remove(path);
+        if (orphan != null) {
+            firstChildren[index] = orphan;
+            for (int child = orphan; child != NONE; child = nextSiblings[child]) {
+                parents[child] = index;
+            }
+        }
+    }
+
+    /**
+     * Takes an item out of the tree.  Its descendants can no longer be reached through it.
+     * @param index the index of the item
+     * @param path the path of the item
+     */
+    void remove(int index, String path) {
+        if (index >= size) return;
+        parents[index] = REMOVED;
+        if (index < ordered) removedOrderedItems.add(index);
+        if (directories.get(index)) {
+            directoryIds.remove(path.hashCode(), index);
+        }
+    }
+
+    /**
+     * Finds every item beneath a directory.
+     * @param dirPath the path of the directory, which may be a root
+     * @param paths the paths of the items
+     * @return the indices of the items
+     */
+    RoaringBitmap subtree(String dirPath, PathStore paths) {
+        RoaringBitmap result = new RoaringBitmap();
+        // Each entry is the first of some siblings, along with whether their own ranges are already in the result.
+        ArrayDeque<long[]> stack = new ArrayDeque<>();
+        int first = firstChildOf(dirPath, paths);
+        if (first != NONE) stack.push(new long[] {first, 0});
+        while (!stack.isEmpty()) {
+            long[] siblings = stack.pop();
+            boolean covered = siblings[1] != 0;
+            for (int item = (int) siblings[0]; item != NONE; item = nextSiblings[item]) {
+                if (parents[item] == REMOVED) continue;
+                if (item < ordered) {
+                    if (!covered) result.add((long) item, (long) subtreeEnds[item]);
+                    // Only the items added since the numbering are missing from the range.
+                    if (newDescendants.get(item)) stack.push(new long[] {firstChildren[item], 1});
+                } else {
+                    result.add(item);
+                    if (firstChildren[item] != NONE) stack.push(new long[] {firstChildren[item], 0});
+                }
+            }
+        }
+        result.andNot(removedOrderedItems);
+        result.runOptimize();
+        return result;
+    }
+
+    /**
+     * Calls a function for each item directly beneath a directory.
+     * @param dirPath the path of the directory, which may be a root
+     * @param paths the paths of the items
+     * @param action the function to call with the index of each item
+     */
+    void forEachChild(String dirPath, PathStore paths, IntConsumer action) {
+        for (int item = firstChildOf(dirPath, paths); item != NONE; item = nextSiblings[item]) {
+            if (parents[item] != REMOVED) action.accept(item);
+        }
+    }
+
+    /**
+     * Lists the paths of the directories beneath a directory.  Each directory comes right before its own
+     * subdirectories, and the subdirectories of a directory are in order of their paths.
+     * @param dirPath the path of the directory, which may be a root
+     * @param paths the paths of the items
+     * @return the paths of the directories
+     */
+    List<String> directoriesBeneath(String dirPath, PathStore paths) {
+        ArrayList<String> result = new ArrayList<>();
+        ArrayDeque<Integer> stack = new ArrayDeque<>();
+        pushSubdirectories(firstChildOf(dirPath, paths), paths, stack);
+        while (!stack.isEmpty()) {
+            int dir = stack.pop();
+            result.add(paths.get(dir));
+            pushSubdirectories(firstChildren[dir], paths, stack);
+        }
+        return result;
+    }
+
+    /**
+     * Pushes the directories among some siblings onto a stack so that they are popped in order of their paths.
+     */
+    private void pushSubdirectories(int first, PathStore paths, ArrayDeque<Integer> stack) {
+        TreeMap<String, Integer> siblings = new TreeMap<>(Comparator.reverseOrder());
+        for (int item = first; item != NONE; item = nextSiblings[item]) {
+            if (parents[item] != REMOVED && directories.get(item)) siblings.put(paths.get(item), item);
+        }
+        siblings.values().forEach(stack::push);
+    }
+
+    /**
+     * Gets the path of the directory containing an item without going through {@link java.nio.file.Path}.  This is
+     * called for every item in the posting list, so it has to be cheap.
+     * @param path the path of the item
+     * @return the path of its parent
+     */
+    static String parentOf(String path) {
+        int idx = path.lastIndexOf(File.separatorChar);
+        if (idx < 0) return "";
+        // The parent of an item directly beneath a root keeps its separator, just like the root itself (e.g. "/").
+        return path.indexOf(File.separatorChar) == idx ? path.substring(0, idx + 1) : path.substring(0, idx);
+    }
+
+    private int firstChildOf(String dirPath, PathStore paths) {
+        // "/home/" is stored as "/home", but the root "/" keeps its separator.
+        if (dirPath.length() > 1 && dirPath.endsWith(File.separator)
+                && dirPath.indexOf(File.separatorChar) != dirPath.length() - 1) {
+            dirPath = dirPath.substring(0, dirPath.length() - 1);
+        }
+        int dir = directoryIds.find(dirPath, paths);
+        if (dir >= 0) return firstChildren[dir];
+        Integer orphan = orphans.get(dirPath);
+        return orphan == null ? NONE : orphan;
+    }
+
+    /**
+     * Marks a directory and its ancestors as having descendants that are not in their ranges.
+     */
+    private void markNewDescendant(int dir) {
+        while (dir >= 0 && !newDescendants.get(dir)) {
+            newDescendants.set(dir);
+            dir = parents[dir];
+        }
+    }
+
+    private void link(int index, String parentPath, PathStore paths) {
+        int parent = directoryIds.find(parentPath, paths);
+        if (parent >= 0) {
+            parents[index] = parent;
+            nextSiblings[index] = firstChildren[parent];
+            firstChildren[parent] = index;
+        } else {
+            parents[index] = NONE;
+            Integer orphan = orphans.put(parentPath, index);
+            nextSiblings[index] = orphan == null ? NONE : orphan;
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > parents.length) {
+            int newCapacity = Math.max(capacity, parents.length * 2);
+            parents = Arrays.copyOf(parents, newCapacity);
+            firstChildren = Arrays.copyOf(firstChildren, newCapacity);
+            nextSiblings = Arrays.copyOf(nextSiblings, newCapacity);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package org.friendlyfiles;
+
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * A fork/join task that lists one directory and then hands each of its subdirectories to the walk.  This is the
+ * {@link WalkOptions.Backend#FORK_JOIN} crawler backend.
+ * <p>
+ * Every subdirectory becomes its own subtask, so idle threads can steal work from any level of the tree.  This keeps
+ * all the cores busy even when most of the files are beneath a single directory.  To keep the overhead of tiny tasks
+ * in check, a thread that already has plenty of queued work walks further subdirectories itself instead of forking
+ * them (see {@link WalkOptions#getSplitThreshold()}).
+ * <p>
+ * A task only exists while it holds a permit from its device's {@link DeviceBudget}.  Directories on a device whose
+ * permits are all taken wait in a queue per device, without a task and without blocking a thread; each task that
+ * gives back a permit starts the next waiting directory.  Blocking inside the pool instead would make it start a
+ * compensating thread for every waiting task, and a wide tree on a slow disk can have thousands of those.  Since
+ * tasks are not joined, the walk ends when the {@link FileBatchQueue} sees its last task finish.
+ */
+final class DirectoryWalkTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final Walk walk;
+    private final DeviceQueue device;
+    private final DirectoryLister.Directory dir;
+
+    /**
+     * The directories waiting to be listed on one device.
+     */
+    private static final class DeviceQueue {
+        final Semaphore permits;
+        final ConcurrentLinkedQueue<DirectoryLister.Directory> pending = new ConcurrentLinkedQueue<>();
+
+        DeviceQueue(Semaphore permits) {
+            this.permits = permits;
+        }
+    }
+
+    /**
+     * The state shared by all the tasks of a walk.
+     */
+    static final class Walk {
+        private final DirectoryLister lister;
+        private final FileBatchQueue result;
+        private final ForkJoinPool pool;
+        private final ConcurrentHashMap<Object, DeviceQueue> devices = new ConcurrentHashMap<>();
+
+        /**
+         * @param lister the lister that passes each directory's contents to the queue
+         * @param result the queue that tracks the outstanding directories
+         * @param pool the pool to run the tasks in
+         */
+        Walk(DirectoryLister lister, FileBatchQueue result, ForkJoinPool pool) {
+            this.lister = lister;
+            this.result = result;
+            this.pool = pool;
+        }
+
+        /**
+         * Starts walking a directory in the background.  The queue is told when the last directory is done.
+         * @param dir the directory to walk
+         */
+        void submit(DirectoryLister.Directory dir) {
+            result.taskStarted();
+            DeviceQueue device = devices.computeIfAbsent(
+                    dir.device, d -> new DeviceQueue(lister.getDeviceBudget().permitsFor(d)));
+            device.pending.offer(dir);
+            startTasks(device);
+        }
+
+        /**
+         * Starts a task for each directory waiting on a device, as long as there are permits left for it.
+         */
+        private void startTasks(DeviceQueue device) {
+            // After letting go of a permit we took for a directory that someone else got to first, we have to look
+            // again, since a directory queued in the meantime may have found the permit missing and given up.
+            while (!device.pending.isEmpty() && device.permits.tryAcquire()) {
+                DirectoryLister.Directory dir = device.pending.poll();
+                if (dir == null) {
+                    device.permits.release();
+                    continue;
+                }
+                DirectoryWalkTask task = new DirectoryWalkTask(this, device, dir);
+                if (!inForkJoinPool()) {
+                    pool.execute(task);
+                } else if (getSurplusQueuedTaskCount() > lister.getOptions().getSplitThreshold()) {
+                    task.compute();
+                } else {
+                    task.fork();
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates a task for walking a directory.  The directory itself is not passed to the queue; only its contents are.
+     * @param walk the walk that the directory belongs to
+     * @param device the queue of the directory's device, from which the task holds a permit
+     * @param dir the directory to walk
+     */
+    private DirectoryWalkTask(Walk walk, DeviceQueue device, DirectoryLister.Directory dir) {
+        this.walk = walk;
+        this.device = device;
+        this.dir = dir;
+    }
+
+    @Override
+    protected void compute() {
+        try {
+            List<DirectoryLister.Directory> subdirectories;
+            try {
+                subdirectories = walk.lister.list(dir);
+            } finally {
+                // The permit has to be given back before walking the subdirectories, which may be on the same device.
+                device.permits.release();
+            }
+            subdirectories.forEach(walk::submit);
+            // The permit we just released may be the one a waiting directory needs.
+            walk.startTasks(device);
+        } finally {
+            walk.result.taskFinished();
+        }
+    }
+}
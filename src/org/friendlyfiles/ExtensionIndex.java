@@ -0,0 +1,103 @@
+package org.friendlyfiles;
+
+import org.roaringbitmap.FastAggregation;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * Maps each file extension to the items of a {@link PostingList} that have it, so that filtering by extension is a few
+ * bitmap unions instead of a suffix check on every candidate path.
+ * <p>
+ * Extensions are compared without regard to case, and include the dot (e.g. {@code .java}).  An item whose name has no
+ * dot after its last separator has no extension and isn't in the index.  Only the part of a name after its last dot is
+ * indexed; a filter for a compound extension such as {@code .tar.gz} looks up {@code .gz} and then checks the whole
+ * suffix of each of those items.
+ */
+final class ExtensionIndex {
+    private final HashMap<String, RoaringBitmap> items = new HashMap<>();
+
+    /**
+     * Builds the index for every path in a store at once.
+     * @param paths the paths to index
+     * @return the index
+     */
+    static ExtensionIndex build(PathStore paths) {
+        ExtensionIndex index = new ExtensionIndex();
+        for (int i = 0; i < paths.size(); ++i) {
+            if (!paths.isRemoved(i)) index.add(paths.get(i), i);
+        }
+        return index;
+    }
+
+    /**
+     * @param path the path of an item
+     * @return the lower-cased extension of the item, or null if it has none
+     */
+    static String extensionOf(String path) {
+        int lastDotIdx = path.lastIndexOf('.');
+        if (lastDotIdx <= path.lastIndexOf(File.separatorChar)) return null;
+        return path.substring(lastDotIdx).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Records the extension of an item.
+     * @param path the path of the item
+     * @param id the index of the item
+     */
+    void add(String path, int id) {
+        String extension = extensionOf(path);
+        if (extension != null) items.computeIfAbsent(extension, ext -> new RoaringBitmap()).add(id);
+    }
+
+    /**
+     * Forgets the extension of an item.
+     * @param path the path of the item
+     * @param id the index of the item
+     */
+    void remove(String path, int id) {
+        String extension = extensionOf(path);
+        if (extension == null) return;
+        RoaringBitmap bitmap = items.get(extension);
+        if (bitmap == null) return;
+        bitmap.remove(id);
+        if (bitmap.isEmpty()) items.remove(extension);
+    }
+
+    /**
+     * Finds the items that have any of some extensions.
+     * @param extensions the extensions, each starting with a dot; they may contain more dots (e.g. {@code .tar.gz})
+     * @param paths the paths of the items, to check compound extensions against
+     * @return a new bitmap of the items
+     */
+    RoaringBitmap select(Collection<String> extensions, PathStore paths) {
+        List<RoaringBitmap> matches = new ArrayList<>(extensions.size());
+        for (String extension : extensions) {
+            String suffix = extension.toLowerCase(Locale.ROOT);
+            String lastExtension = extensionOf(suffix);
+            RoaringBitmap bitmap = lastExtension == null ? null : items.get(lastExtension);
+            if (bitmap == null) continue;
+            if (lastExtension.length() == suffix.length()) {
+                matches.add(bitmap);
+                continue;
+            }
+            // Every item with the compound extension has its last part, so only those have to be checked.
+            RoaringBitmap compound = new RoaringBitmap();
+            bitmap.forEach((int id) -> {
+                if (paths.get(id).toLowerCase(Locale.ROOT).endsWith(suffix)) compound.add(id);
+            });
+            matches.add(compound);
+        }
+        return FastAggregation.or(matches.iterator());
+    }
+
+    /**
+     * @return the number of items with each extension
+     */
+    Map<String, Integer> counts() {
+        HashMap<String, Integer> counts = new HashMap<>();
+        items.forEach((extension, bitmap) -> counts.put(extension, bitmap.getCardinality()));
+        return counts;
+    }
+}
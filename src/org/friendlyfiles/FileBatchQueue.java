@@ -0,0 +1,233 @@
+package org.friendlyfiles;
+
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded queue of fixed-size batches of files that connects the walker threads to the thread consuming their
+ * results.
+ * <p>
+ * Batches are recycled instead of being garbage collected.  Each batch stores its files as parallel arrays, with all
+ * of the paths packed into one character buffer, so filling one allocates nothing.
+ * When the consumer falls behind, the queue fills up and the walker threads block in {@link Producer#emit} until it
+ * catches up.  This means that the walk never holds more than roughly {@code (queueDepth + producers + 1) * batchSize}
+ * files in memory, no matter how big the file tree is.
+ * <p>
+ * The queue also decides when the walk is over.  Every walker task is counted with {@link #taskStarted} and
+ * {@link #taskFinished}, and the last task to finish puts an end marker behind its final batch.  Thus, the consumer
+ * stops as soon as the last walker is done, and never before.
+ */
+final class FileBatchQueue {
+    /**
+     * A fixed-size chunk of file information.  Only the first {@link #count} entries are valid.  The path of entry
+     * {@code i} is {@code chars[pathStart(i), pathEnds[i])}.
+     */
+    static final class Batch {
+        char[] chars;
+        final int[] pathEnds;
+        final long[] sizes;
+        final long[] timestamps;
+        int count = 0;
+
+        private Batch(int size) {
+            // Most paths are well under a hundred characters; the buffer grows if they aren't.
+            chars = new char[size * 96];
+            pathEnds = new int[size];
+            sizes = new long[size];
+            timestamps = new long[size];
+        }
+
+        /**
+         * @param i the index of an entry
+         * @return the index in {@link #chars} where the path of the entry starts
+         */
+        int pathStart(int i) {
+            return i == 0 ? 0 : pathEnds[i - 1];
+        }
+
+        /**
+         * Passes every entry to a sink.
+         * @param sink the sink to fill
+         */
+        void drainTo(FileSink sink) {
+            for (int i = 0; i < count; ++i) {
+                int start = pathStart(i);
+                sink.accept(chars, start, pathEnds[i] - start, sizes[i], timestamps[i]);
+            }
+        }
+
+        private boolean isFull() {
+            return count == sizes.length;
+        }
+
+        private void add(String path, long size, long timestamp) {
+            int start = pathStart(count);
+            int end = start + path.length();
+            if (end > chars.length) chars = Arrays.copyOf(chars, Math.max(end, chars.length * 2));
+            path.getChars(0, path.length(), chars, start);
+            pathEnds[count] = end;
+            sizes[count] = size;
+            timestamps[count] = timestamp;
+            ++count;
+        }
+    }
+
+    /**
+     * Fills batches on behalf of a single walker thread and hands them to the queue when they are full.
+     * <p>
+     * A producer is NOT thread-safe; each thread needs its own.
+     */
+    final class Producer {
+        private Batch batch = null;
+
+        /**
+         * Adds a file to the current batch, blocking if the batch is full and the queue has no room for it.
+         * @param path the path of the file
+         * @param size the size of the file
+         * @param timestamp the last modified time of the file
+         */
+        void emit(String path, long size, long timestamp) {
+            if (batch == null) batch = emptyBatch();
+            batch.add(path, size, timestamp);
+            if (batch.isFull()) flush();
+        }
+
+        /**
+         * Hands the current batch to the queue, even if it is not full.
+         */
+        void flush() {
+            if (batch == null || batch.count == 0) return;
+            try {
+                full.put(batch);
+            } catch (InterruptedException e) {
+                throw new Error(e);
+            }
+            batch = null;
+        }
+    }
+
+    private static final Batch END = new Batch(0);
+
+    private final ArrayBlockingQueue<Batch> full;
+    private final ConcurrentLinkedQueue<Batch> free = new ConcurrentLinkedQueue<>();
+    private final int batchSize;
+    private final ConcurrentLinkedQueue<Producer> idleProducers = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Producer> allProducers = new ConcurrentLinkedQueue<>();
+    // Starts at one on behalf of the walk itself, so that the count can't reach zero while it is still starting tasks.
+    private final AtomicInteger outstandingTasks = new AtomicInteger(1);
+
+    /**
+     * Creates an empty queue.
+     * @param options the queue depth and batch size to use
+     */
+    FileBatchQueue(WalkOptions options) {
+        full = new ArrayBlockingQueue<>(options.getQueueDepth());
+        batchSize = options.getBatchSize();
+    }
+
+    /**
+     * Registers a walker task.  This must be called by a task that has not finished yet, before the new task is
+     * submitted.
+     */
+    void taskStarted() {
+        outstandingTasks.incrementAndGet();
+    }
+
+    /**
+     * Deregisters a walker task.  The task must have given back any producer it acquired.
+     */
+    void taskFinished() {
+        if (outstandingTasks.decrementAndGet() == 0) {
+            flushProducers();
+            try {
+                full.put(END);
+            } catch (InterruptedException e) {
+                throw new Error(e);
+            }
+        }
+    }
+
+    /**
+     * Lends a producer to the calling thread.  Producers keep their partially filled batch between loans, so short
+     * tasks do not each send a nearly empty batch to the consumer.
+     * @return a producer that no other thread is using
+     */
+    Producer acquireProducer() {
+        Producer producer = idleProducers.poll();
+        if (producer == null) {
+            producer = new Producer();
+            allProducers.add(producer);
+        }
+        return producer;
+    }
+
+    /**
+     * Gives back a producer obtained from {@link #acquireProducer}.  The caller must not use it afterwards.
+     * @param producer the producer to give back
+     */
+    void releaseProducer(Producer producer) {
+        idleProducers.offer(producer);
+    }
+
+    /**
+     * Flushes every producer that has been handed out.  This must only be called once all the walker tasks are done
+     * with their producers.
+     */
+    private void flushProducers() {
+        allProducers.forEach(Producer::flush);
+    }
+
+    /**
+     * Waits for a full batch.  Several threads may take batches at the same time.
+     * @param stats the statistics to record the waiting time in
+     * @return the next batch, or null if every walker task has finished
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    Batch take(WalkStats stats) throws InterruptedException {
+        Batch batch = full.poll();
+        if (batch == null) {
+            long start = System.nanoTime();
+            batch = full.take();
+            stats.addConsumerWaitNanos(System.nanoTime() - start);
+        }
+        if (batch == END) {
+            // Put the marker back for the other consumers, if there are any.
+            full.put(END);
+            return null;
+        }
+        return batch;
+    }
+
+    /**
+     * Passes every batch this thread takes to a sink until the walk is over.
+     * @param sink the sink to fill
+     * @param stats the statistics to record the number of files and the waiting time in
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    void drainTo(FileSink sink, WalkStats stats) throws InterruptedException {
+        Batch batch;
+        while ((batch = take(stats)) != null) {
+            batch.drainTo(sink);
+            stats.addEntries(batch.count);
+            recycle(batch);
+        }
+    }
+
+    /**
+     * Returns a batch that has been consumed so that a producer can fill it again.
+     * @param batch the batch to recycle
+     */
+    void recycle(Batch batch) {
+        batch.count = 0;
+        free.offer(batch);
+    }
+
+    /**
+     * @return a recycled batch if there is one; otherwise, a newly allocated one
+     */
+    private Batch emptyBatch() {
+        Batch batch = free.poll();
+        return batch == null ? new Batch(batchSize) : batch;
+    }
+}
@@ -0,0 +1,21 @@
+package org.friendlyfiles;
+
+/**
+ * Receives the files found by a walk straight out of the walker's buffers.  This is the low-level counterpart of
+ * {@link ParallelFileTreeVisitor#op}: no {@link String} or {@link FileModel} is made for any file unless the sink makes
+ * one itself.  (e.g. {@link PostingList#add(char[], int, int, long, long) PostingList.add})
+ * <p>
+ * The path is only valid until the method returns, since its buffer is reused for the files that come after it.
+ */
+@FunctionalInterface
+public interface FileSink {
+    /**
+     * The operation to be performed on every file that is visited.
+     * @param path a buffer containing the path of the file being visited
+     * @param offset the index of the first character of the path in the buffer
+     * @param length the number of characters in the path
+     * @param size the size of the file being visited
+     * @param timestamp the last modified time of the file being visited
+     */
+    void accept(char[] path, int offset, int length, long size, long timestamp);
+}
@@ -0,0 +1,415 @@
+package org.friendlyfiles;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A {@link PathStore} that only stores the part of each path that differs from the path before it.
+ * <p>
+ * A walk hands over the contents of a directory together, so neighbouring items share most of their paths (e.g.
+ * {@code /home/alice/projects/foo/src/Main.java} and {@code .../src/Util.java}).  The paths are grouped into blocks of
+ * {@link #BLOCK_SIZE} consecutive indices.  Within a block, each path is stored as the length of the prefix it shares
+ * with the previous one, followed by the bytes that come after it; the first path of a block shares nothing, so it is
+ * stored whole.  Getting a path means decoding its block up to it, which touches at most {@code BLOCK_SIZE} entries.
+ * <p>
+ * The encoded blocks are packed into chunks of {@link #CHUNK_SIZE} bytes, and each block is located by a reference
+ * (chunk and offset) and a length.  This comes to less than a byte of overhead per path.  Removing a path re-encodes
+ * its block with an empty path in its place, and the old copy of the block is left behind in its chunk until the store
+ * is rebuilt.  The blocks are written to files as they are, so the database file shrinks just as much.
+ */
+final class FrontCodedPathStore implements PathStore {
+    static final int BLOCK_SIZE = 16;
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    /**
+     * A growable buffer for decoding paths into.  Queries decode paths from several threads at once, so each thread
+     * has its own.
+     */
+    private static final class Scratch {
+        byte[] bytes = new byte[256];
+        int length = 0;
+
+        void ensureCapacity(int capacity) {
+            if (capacity > bytes.length) bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length * 2));
+        }
+    }
+
+    private static final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    private byte[][] chunks = new byte[0][];
+    // The number of bytes used in the last chunk.
+    private int fill = 0;
+    // Each reference holds a chunk index in its upper half and an offset into the chunk in its lower half.
+    private long[] blockRefs = new long[16];
+    private int[] blockLengths = new int[16];
+    private int size = 0;
+    private long encodedBytes = 0;
+    private BitSet removed = new BitSet();
+    // The last path that was added, which the next one is coded against.  These are only touched by the thread that
+    // adds paths.
+    private final Scratch last = new Scratch();
+    private final Scratch pending = new Scratch();
+    private final Scratch entry = new Scratch();
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int add(char[] chars, int offset, int length) {
+        pending.ensureCapacity(length * 3);
+        byte[] bytes = pending.bytes;
+        int pos = 0;
+        for (int i = offset; i < offset + length; ++i) {
+            char c = chars[i];
+            if (c < 0x80) {
+                bytes[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[pos++] = (byte) (0xc0 | (c >> 6));
+                bytes[pos++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < offset + length && Character.isLowSurrogate(chars[i + 1])) {
+                int codePoint = Character.toCodePoint(c, chars[++i]);
+                bytes[pos++] = (byte) (0xf0 | (codePoint >> 18));
+                bytes[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                bytes[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                bytes[pos++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogates are replaced with '?', just like `String.getBytes` does.
+                bytes[pos++] = '?';
+            } else {
+                bytes[pos++] = (byte) (0xe0 | (c >> 12));
+                bytes[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                bytes[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return addEncoded(bytes, pos);
+    }
+
+    @Override
+    public void addAll(PathStore other) {
+        if (!(other instanceof FrontCodedPathStore)) {
+            for (int i = 0; i < other.size(); ++i) {
+                add(other.get(i));
+            }
+            return;
+        }
+        // The blocks of the other store don't line up with ours, so its paths are decoded and coded again.
+        FrontCodedPathStore store = (FrontCodedPathStore) other;
+        Scratch buffer = new Scratch();
+        for (int block = 0; block < store.numBlocks(); ++block) {
+            byte[] chunk = store.chunkOf(block);
+            int pos = store.offsetOf(block);
+            for (int i = block * BLOCK_SIZE; i < Math.min(store.size, (block + 1) * BLOCK_SIZE); ++i) {
+                pos = decodeNext(chunk, pos, buffer);
+                addEncoded(buffer.bytes, buffer.length);
+            }
+        }
+    }
+
+    @Override
+    public PathStore snapshot() {
+        // Bytes are only ever written past `fill`, so the chunks can be shared as long as the copy never adds to them.
+        FrontCodedPathStore copy = new FrontCodedPathStore();
+        copy.chunks = chunks.clone();
+        copy.fill = chunks.length == 0 ? 0 : chunks[chunks.length - 1].length;
+        copy.blockRefs = Arrays.copyOf(blockRefs, Math.max(numBlocks(), 1));
+        copy.blockLengths = Arrays.copyOf(blockLengths, Math.max(numBlocks(), 1));
+        copy.size = size;
+        copy.encodedBytes = encodedBytes;
+        copy.removed = (BitSet) removed.clone();
+        copy.last.ensureCapacity(last.length);
+        System.arraycopy(last.bytes, 0, copy.last.bytes, 0, last.length);
+        copy.last.length = last.length;
+        return copy;
+    }
+
+    @Override
+    public String get(int index) {
+        Scratch buffer = decode(index);
+        return new String(buffer.bytes, 0, buffer.length, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public boolean isRemoved(int index) {
+        return removed.get(index);
+    }
+
+    @Override
+    public void remove(int index) {
+        if (removed.get(index)) return;
+        removed.set(index);
+
+        // Decode the whole block, then code it again with an empty path in place of the removed one.
+        int block = index / BLOCK_SIZE;
+        int first = block * BLOCK_SIZE, end = Math.min(size, first + BLOCK_SIZE);
+        byte[][] blockPaths = new byte[end - first][];
+        Scratch buffer = new Scratch();
+        byte[] chunk = chunkOf(block);
+        int pos = offsetOf(block);
+        for (int i = first; i < end; ++i) {
+            pos = decodeNext(chunk, pos, buffer);
+            blockPaths[i - first] = i == index ? new byte[0] : Arrays.copyOf(buffer.bytes, buffer.length);
+        }
+        Scratch encoded = new Scratch();
+        byte[] previous = blockPaths[0];
+        for (int i = 0; i < blockPaths.length; ++i) {
+            byte[] path = blockPaths[i];
+            encoded.ensureCapacity(encoded.length + path.length + 10);
+            encoded.length = encodeEntry(previous, i == 0 ? 0 : previous.length, path, path.length, encoded.bytes,
+                                         encoded.length);
+            previous = path;
+        }
+
+        int start = reserve(encoded.length);
+        System.arraycopy(encoded.bytes, 0, chunks[chunks.length - 1], start, encoded.length);
+        encodedBytes += encoded.length - blockLengths[block];
+        blockRefs[block] = ref(chunks.length - 1, start);
+        blockLengths[block] = encoded.length;
+        fill += encoded.length;
+        if (index == size - 1) last.length = 0;
+    }
+
+    @Override
+    public boolean matches(int index, byte[] path) {
+        Scratch buffer = decode(index);
+        return buffer.length == path.length && regionMatches(buffer.bytes, 0, path);
+    }
+
+    @Override
+    public boolean startsWith(int index, byte[] prefix) {
+        Scratch buffer = decode(index);
+        return buffer.length >= prefix.length && regionMatches(buffer.bytes, 0, prefix);
+    }
+
+    @Override
+    public boolean contains(int index, byte[] infix) {
+        if (infix.length == 0) return true;
+        Scratch buffer = decode(index);
+        return regionContains(buffer.bytes, 0, buffer.length, infix);
+    }
+
+    @Override
+    public boolean nameContains(int index, byte[] infix) {
+        if (infix.length == 0) return true;
+        Scratch buffer = decode(index);
+        int start = buffer.length;
+        while (start > 0 && buffer.bytes[start - 1] != (byte) File.separatorChar) --start;
+        return regionContains(buffer.bytes, start, buffer.length, infix);
+    }
+
+    @Override
+    public long serializedSize() {
+        return numBlocks() * 4L + encodedBytes;
+    }
+
+    @Override
+    public void writeTo(ByteBuffer buffer) {
+        for (int block = 0; block < numBlocks(); ++block) {
+            buffer.putInt(blockLengths[block]);
+            buffer.put(chunkOf(block), offsetOf(block), blockLengths[block]);
+        }
+    }
+
+    /**
+     * Reads paths that were written by {@link #writeTo}, advancing the buffer's position past them.
+     * @param buffer the buffer to read from
+     * @param count the number of paths to read
+     * @return a store holding the paths
+     */
+    static FrontCodedPathStore readFrom(ByteBuffer buffer, int count) {
+        FrontCodedPathStore store = new FrontCodedPathStore();
+        store.size = count;
+        store.ensureBlockCapacity(store.numBlocks());
+        for (int block = 0; block < store.numBlocks(); ++block) {
+            int length = buffer.getInt();
+            int start = store.reserve(length);
+            buffer.get(store.chunks[store.chunks.length - 1], start, length);
+            store.blockRefs[block] = ref(store.chunks.length - 1, start);
+            store.blockLengths[block] = length;
+            store.fill += length;
+            store.encodedBytes += length;
+
+            // Find the removed paths, and leave the last path in `last` for the next one to be coded against.
+            byte[] chunk = store.chunkOf(block);
+            int pos = store.offsetOf(block);
+            for (int i = block * BLOCK_SIZE; i < Math.min(count, (block + 1) * BLOCK_SIZE); ++i) {
+                pos = decodeNext(chunk, pos, store.last);
+                if (store.last.length == 0) store.removed.set(i);
+            }
+        }
+        return store;
+    }
+
+    /**
+     * Appends a path to the last block, or to a new block if the last one is full.
+     * @param bytes a buffer starting with the UTF-8 bytes of the path
+     * @param length the number of bytes in the path
+     * @return the index of the new path
+     */
+    private int addEncoded(byte[] bytes, int length) {
+        int block = size / BLOCK_SIZE;
+        boolean startsBlock = size % BLOCK_SIZE == 0;
+        entry.ensureCapacity(length + 10);
+        entry.length = encodeEntry(last.bytes, startsBlock ? 0 : last.length, bytes, length, entry.bytes, 0);
+
+        if (startsBlock) {
+            ensureBlockCapacity(block + 1);
+            int start = reserve(entry.length);
+            blockRefs[block] = ref(chunks.length - 1, start);
+            blockLengths[block] = 0;
+        } else if (!endsArena(block) || fill + entry.length > chunks[chunks.length - 1].length) {
+            // A block has to stay in one piece, so it is moved to where it has room to grow.
+            int blockLength = blockLengths[block];
+            int start = reserve(blockLength + entry.length);
+            System.arraycopy(chunkOf(block), offsetOf(block), chunks[chunks.length - 1], start, blockLength);
+            blockRefs[block] = ref(chunks.length - 1, start);
+            fill = start + blockLength;
+        }
+        System.arraycopy(entry.bytes, 0, chunks[chunks.length - 1], fill, entry.length);
+        fill += entry.length;
+        blockLengths[block] += entry.length;
+        encodedBytes += entry.length;
+
+        if (length == 0) removed.set(size);
+        last.ensureCapacity(length);
+        System.arraycopy(bytes, 0, last.bytes, 0, length);
+        last.length = length;
+        return size++;
+    }
+
+    /**
+     * Decodes a path into this thread's scratch buffer.
+     * @param index the index of the path
+     * @return the buffer holding the path
+     */
+    private Scratch decode(int index) {
+        Scratch buffer = scratch.get();
+        int block = index / BLOCK_SIZE;
+        byte[] chunk = chunkOf(block);
+        int pos = offsetOf(block);
+        for (int i = block * BLOCK_SIZE; i <= index; ++i) {
+            pos = decodeNext(chunk, pos, buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * Codes a path as the length of the prefix it shares with the previous path, the number of bytes after the prefix,
+     * and those bytes.
+     * @return the position in {@code dest} after the entry
+     */
+    private static int encodeEntry(byte[] previous, int previousLength, byte[] path, int length, byte[] dest, int pos) {
+        int shared = 0;
+        int limit = Math.min(previousLength, length);
+        while (shared < limit && previous[shared] == path[shared]) ++shared;
+        pos = writeVarInt(shared, dest, pos);
+        pos = writeVarInt(length - shared, dest, pos);
+        System.arraycopy(path, shared, dest, pos, length - shared);
+        return pos + length - shared;
+    }
+
+    /**
+     * Decodes the path at a position, given the path before it.
+     * @param chunk the chunk holding the path
+     * @param pos the position of the path in the chunk
+     * @param buffer holds the previous path, and receives the decoded path
+     * @return the position after the path
+     */
+    private static int decodeNext(byte[] chunk, int pos, Scratch buffer) {
+        int shared = 0, rest = 0, shift = 0, b;
+        do {
+            b = chunk[pos++];
+            shared |= (b & 0x7f) << shift;
+            shift += 7;
+        } while (b < 0);
+        shift = 0;
+        do {
+            b = chunk[pos++];
+            rest |= (b & 0x7f) << shift;
+            shift += 7;
+        } while (b < 0);
+        buffer.ensureCapacity(shared + rest);
+        System.arraycopy(chunk, pos, buffer.bytes, shared, rest);
+        buffer.length = shared + rest;
+        return pos + rest;
+    }
+
+    private static int writeVarInt(int value, byte[] dest, int pos) {
+        while ((value & ~0x7f) != 0) {
+            dest[pos++] = (byte) (0x80 | (value & 0x7f));
+            value >>>= 7;
+        }
+        dest[pos++] = (byte) value;
+        return pos;
+    }
+
+    /**
+     * Makes sure there is room for some bytes at the end of the last chunk, starting a new chunk if there isn't.
+     * @param byteLength the number of bytes needed
+     * @return the offset in the last chunk at which to write them
+     */
+    private int reserve(int byteLength) {
+        if (chunks.length == 0 || fill + byteLength > chunks[chunks.length - 1].length) {
+            chunks = Arrays.copyOf(chunks, chunks.length + 1);
+            chunks[chunks.length - 1] = new byte[Math.max(CHUNK_SIZE, byteLength)];
+            fill = 0;
+        }
+        return fill;
+    }
+
+    /**
+     * @param block the index of a block
+     * @return whether nothing has been written after the block
+     */
+    private boolean endsArena(int block) {
+        return (int) (blockRefs[block] >>> 32) == chunks.length - 1 && offsetOf(block) + blockLengths[block] == fill;
+    }
+
+    private void ensureBlockCapacity(int capacity) {
+        if (capacity > blockRefs.length) {
+            int newCapacity = Math.max(capacity, blockRefs.length * 2);
+            blockRefs = Arrays.copyOf(blockRefs, newCapacity);
+            blockLengths = Arrays.copyOf(blockLengths, newCapacity);
+        }
+    }
+
+    private int numBlocks() {
+        return (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+
+    private static long ref(int chunk, int offset) {
+        return ((long) chunk << 32) | offset;
+    }
+
+    private byte[] chunkOf(int block) {
+        return chunks[(int) (blockRefs[block] >>> 32)];
+    }
+
+    private int offsetOf(int block) {
+        return (int) blockRefs[block];
+    }
+
+    private static boolean regionContains(byte[] bytes, int from, int to, byte[] infix) {
+        byte first = infix[0];
+        outer:
+        for (int i = from; i <= to - infix.length; ++i) {
+            if (bytes[i] != first) continue;
+            for (int j = 1; j < infix.length; ++j) {
+                if (bytes[i + j] != infix[j]) continue outer;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean regionMatches(byte[] bytes, int from, byte[] other) {
+        for (int i = 0; i < other.length; ++i) {
+            if (bytes[from + i] != other[i]) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,173 @@
+package org.friendlyfiles;
+
+import org.roaringbitmap.RoaringBitmap;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+/**
+ * Brings a posting list that was read from a file up to date with the filesystem without walking the whole tree.
+ * <p>
+ * Creating, deleting, or renaming an entry updates the last modified time of the directory that contains it.  Because
+ * the posting list stores a timestamp for every directory, we only need to stat the directories to find out which of
+ * them have changed.  Only those directories are listed again, and only brand-new subdirectories are walked.
+ * <p>
+ * This is the same trade-off that `updatedb` makes: a file whose contents change without being replaced keeps its old
+ * size and timestamp until its directory changes or the next full crawl.  Timestamps have a resolution of one second,
+ * so a change made in the same second as the last crawl can also be missed.
+ * <p>
+ * The posting list is the one the UI is querying, so it is only read while holding the switchboard's lock, and the
+ * changes are applied through {@link Switchboard#applyIndexChanges} all at once.  The slow part, asking the filesystem,
+ * happens without the lock.  Items are referred to by their paths, since a compaction may renumber them in between.
+ * <p>
+ * Besides bringing a whole database file up to date at startup, this keeps the directories that {@link IndexWatcher}
+ * could not register up to date, by checking only the subtrees beneath them.
+ */
+final class IndexRefresher {
+    private final PostingList pl;
+    private final Switchboard switchboard;
+    private final WalkOptions options;
+    // The directories beneath which to check, or null to check everything.
+    private final Collection<Path> subtrees;
+    private int directoriesChecked = 0, directoriesChanged = 0, itemsAdded = 0, itemsRemoved = 0, itemsUpdated = 0;
+
+    /**
+     * @param pl the posting list to update in place
+     * @param switchboard the switchboard that guards the posting list, and through which the changes are applied
+     * @param options the roots and exclusion rules that the posting list was built with
+     */
+    IndexRefresher(PostingList pl, Switchboard switchboard, WalkOptions options) {
+        this(pl, switchboard, options, null);
+    }
+
+    /**
+     * @param pl the posting list to update in place
+     * @param switchboard the switchboard that guards the posting list, and through which the changes are applied
+     * @param options the exclusion rules that the posting list was built with
+     * @param subtrees the directories to check along with everything beneath them, or null to check everything
+     */
+    IndexRefresher(PostingList pl, Switchboard switchboard, WalkOptions options, Collection<Path> subtrees) {
+        this.pl = pl;
+        this.switchboard = switchboard;
+        this.options = options;
+        this.subtrees = subtrees;
+    }
+
+    /**
+     * Updates the posting list to match the filesystem.
+     */
+    void refresh() {
+        // Find the directories whose timestamps no longer match.  The roots are not in the posting list, so when
+        // checking everything, we always have to list them again.
+        ArrayList<String> dirPaths = new ArrayList<>();
+        ArrayList<Long> recordedTimestamps = new ArrayList<>();
+        synchronized (switchboard) {
+            RoaringBitmap candidates = RoaringBitmap.bitmapOfRange(0, pl.numSlots());
+            if (subtrees != null) {
+                candidates = new RoaringBitmap();
+                for (Path dir : subtrees) {
+                    candidates.or(pl.getSubtree(dir.toString()));
+                    int id = pl.indexOf(dir.toString());
+                    if (id >= 0) candidates.add(id);
+                }
+            }
+            candidates.forEach((int i) -> {
+                if (pl.sizeAt(i) != -1) return;
+                String path = pl.pathAt(i);
+                if (path.isEmpty()) return;
+                dirPaths.add(path);
+                recordedTimestamps.add(pl.timestampAt(i));
+            });
+        }
+        directoriesChecked = dirPaths.size();
+        long[] liveTimestamps = dirPaths.parallelStream().mapToLong(dir -> {
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(Paths.get(dir), BasicFileAttributes.class,
+                                                                 LinkOption.NOFOLLOW_LINKS);
+                return attrs.isDirectory() ? attrs.lastModifiedTime().toInstant().getEpochSecond() : Long.MIN_VALUE;
+            } catch (IOException e) {
+                return Long.MIN_VALUE;
+            }
+        }).toArray();
+        ArrayList<FileModel> upserts = new ArrayList<>();
+        HashSet<String> changedDirs = new HashSet<>();
+        if (subtrees == null) options.getRoots().forEach(root -> changedDirs.add(root.toString()));
+        int listedAnyway = changedDirs.size();
+        for (int i = 0; i < dirPaths.size(); ++i) {
+            // Directories that have disappeared are taken care of when their parent is listed again.
+            if (liveTimestamps[i] != Long.MIN_VALUE && liveTimestamps[i] != recordedTimestamps.get(i)) {
+                changedDirs.add(dirPaths.get(i));
+                upserts.add(new FileModel(dirPaths.get(i), -1L, liveTimestamps[i]));
+            }
+        }
+        directoriesChanged = changedDirs.size() - listedAnyway;
+
+        // Gather the items we have on record for each of the changed directories.
+        HashMap<String, HashMap<String, FileModel>> recordedChildren = new HashMap<>();
+        synchronized (switchboard) {
+            changedDirs.forEach(dir -> {
+                HashMap<String, FileModel> recorded = new HashMap<>();
+                pl.forEachChild(dir, i -> {
+                    String path = pl.pathAt(i);
+                    recorded.put(path, new FileModel(path, pl.sizeAt(i), pl.timestampAt(i)));
+                });
+                recordedChildren.put(dir, recorded);
+            });
+        }
+
+        // List the changed directories and compare them with what we have on record.
+        ArrayList<Path> newDirs = new ArrayList<>();
+        recordedChildren.forEach((dir, recorded) -> {
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(Paths.get(dir))) {
+                for (Path p : entries) {
+                    BasicFileAttributes attrs;
+                    try {
+                        attrs = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (IOException ignored) {
+                        continue;
+                    }
+                    if (!attrs.isDirectory() && !attrs.isRegularFile()) continue;
+                    // Leaving an excluded directory out of the listing removes its old records, if there are any.
+                    if (attrs.isDirectory() && options.isExcluded(p)) continue;
+                    long size = attrs.isDirectory() ? -1L : attrs.size();
+                    long timestamp = attrs.lastModifiedTime().toInstant().getEpochSecond();
+                    FileModel record = recorded.remove(p.toString());
+                    if (record != null && (record.size == -1) == attrs.isDirectory()) {
+                        if (record.size != size || record.timestamp != timestamp) {
+                            upserts.add(new FileModel(p.toString(), size, timestamp));
+                            ++itemsUpdated;
+                        }
+                        continue;
+                    }
+                    // The entry is new, or it has been replaced by an entry of the other kind, which applying the
+                    // changes takes care of.
+                    upserts.add(new FileModel(p.toString(), size, timestamp));
+                    ++itemsAdded;
+                    if (attrs.isDirectory()) newDirs.add(p);
+                }
+            } catch (IOException | DirectoryIteratorException ignored) {
+                // The directory has disappeared or can't be read; everything in it is treated as gone.
+            }
+        });
+
+        // Whatever is left on record no longer exists.  Removing a directory removes everything beneath it.
+        ArrayList<String> removed = new ArrayList<>();
+        recordedChildren.values().forEach(recorded -> removed.addAll(recorded.keySet()));
+        itemsRemoved = removed.size();
+
+        int listed = upserts.size();
+        ParallelFileTreeVisitor walker = (path, size, timestamp) -> upserts.add(new FileModel(path, size, timestamp));
+        newDirs.forEach(dir -> walker.walk(dir, options));
+        itemsAdded += upserts.size() - listed;
+
+        switchboard.applyIndexChanges(removed, upserts, Collections.emptyList());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d of %d directories changed; %d items added, %d removed, %d updated",
+                directoriesChanged, directoriesChecked, itemsAdded, itemsRemoved, itemsUpdated);
+    }
+}
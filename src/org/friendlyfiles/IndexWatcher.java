@@ -0,0 +1,238 @@
+package org.friendlyfiles;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Keeps the backend current with changes made outside of the application by watching the search roots with a
+ * {@link WatchService}.
+ * <p>
+ * Events are not applied one at a time.  After the first event arrives, the watcher keeps collecting events for a
+ * short window (see {@code friendlyfiles.watch.coalesceMillis}), merging repeated events for the same path.  Then it
+ * stats each path to see what actually happened to it and sends all the changes to the backend at once through
+ * {@link Switchboard#applyIndexChanges}.  If the operating system drops events for a directory, the whole subtree
+ * beneath it is walked again.
+ * <p>
+ * Most platforms can only watch one directory at a time, so every directory beneath a root is registered separately
+ * (except for the ones excluded by {@link WalkOptions#isExcluded}).  The registration runs on a thread of its own, so
+ * that events keep being processed while a large tree is registered.  If a directory can't be registered (e.g. when
+ * Linux's `fs.inotify.max_user_watches` runs out), neither it nor anything beneath it is watched.  Instead, those
+ * subtrees are checked for changes by their directory timestamps every so often (see
+ * {@code friendlyfiles.watch.unwatchedPollMillis} and {@link IndexRefresher}).
+ */
+final class IndexWatcher implements AutoCloseable {
+    private static final long coalesceMillis = Long.getLong("friendlyfiles.watch.coalesceMillis", 500);
+    private static final long unwatchedPollMillis = Long.getLong("friendlyfiles.watch.unwatchedPollMillis", 60_000);
+
+    private final Switchboard switchboard;
+    private final WalkOptions options = new WalkOptions();
+    private final WatchService service;
+    private final Thread thread;
+    private final ExecutorService registration = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "FriendlyFiles watch registration");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // The directories that could not be registered; nothing beneath them is watched either.
+    private final Set<Path> unwatchedDirs = ConcurrentHashMap.newKeySet();
+    // These are only touched by the watcher thread.
+    private final LinkedHashSet<Path> changedPaths = new LinkedHashSet<>();
+    private final HashSet<Path> createdPaths = new HashSet<>();
+    private final LinkedHashSet<Path> overflowedDirs = new LinkedHashSet<>();
+
+    /**
+     * Creates a watcher that is not watching anything yet.
+     * @param switchboard the switchboard through which changes are sent to the backend
+     * @throws IOException if the platform has no way of watching files
+     */
+    IndexWatcher(Switchboard switchboard) throws IOException {
+        this.switchboard = switchboard;
+        this.service = FileSystems.getDefault().newWatchService();
+        this.thread = new Thread(this::processEvents, "FriendlyFiles index watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Starts watching a directory and everything beneath it.  The directories are registered in the background.
+     * @param root the directory to watch
+     */
+    void watch(Path root) {
+        registration.execute(() -> registerTree(root));
+    }
+
+    /**
+     * Stops watching everything.
+     */
+    @Override
+    public void close() {
+        thread.interrupt();
+        registration.shutdownNow();
+        try {
+            service.close();
+        } catch (IOException ignored) {}
+    }
+
+    /**
+     * Registers a directory and all of its subdirectories with the watch service.
+     * @param root the directory to register
+     */
+    private void registerTree(Path root) {
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    if (attrs.isSymbolicLink() || options.isExcluded(dir)) return FileVisitResult.SKIP_SUBTREE;
+                    // The subtree of a directory that can't be watched is polled as a whole.
+                    return register(dir) ? FileVisitResult.CONTINUE : FileVisitResult.SKIP_SUBTREE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            System.err.println("Stopped registering `" + root + "` with the watcher: " + e.getMessage());
+        } catch (ClosedWatchServiceException ignored) {}
+    }
+
+    /**
+     * Registers a single directory with the watch service, or notes that it has to be polled instead.
+     * @param dir the directory to register
+     * @return whether the directory is watched
+     */
+    private boolean register(Path dir) {
+        try {
+            dir.register(service, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+            return true;
+        } catch (IOException e) {
+            if (unwatchedDirs.isEmpty()) {
+                System.err.println("Unable to watch `" + dir + "` (" + e.getMessage() + "); directories that can't be "
+                                   + "watched are checked every " + unwatchedPollMillis + " ms instead.");
+            }
+            unwatchedDirs.add(dir);
+            return false;
+        }
+    }
+
+    /**
+     * Drops the directories that are beneath other directories in a collection.
+     * @param dirs the directories
+     * @return the directories that are not beneath any of the others, without duplicates
+     */
+    static List<Path> topmost(Collection<Path> dirs) {
+        LinkedHashSet<Path> set = new LinkedHashSet<>(dirs);
+        ArrayList<Path> result = new ArrayList<>();
+        for (Path dir : set) {
+            boolean covered = false;
+            for (Path parent = dir.getParent(); parent != null && !covered; parent = parent.getParent()) {
+                covered = set.contains(parent);
+            }
+            if (!covered) result.add(dir);
+        }
+        return result;
+    }
+
+    /**
+     * The body of the watcher thread.
+     */
+    private void processEvents() {
+        try {
+            long nextPoll = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(unwatchedPollMillis);
+            while (true) {
+                WatchKey key = service.poll(Math.max(nextPoll - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+                if (key != null) {
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(coalesceMillis);
+                    while (key != null) {
+                        collectEvents(key);
+                        long remaining = deadline - System.nanoTime();
+                        key = remaining > 0 ? service.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                    }
+                    applyChanges();
+                }
+                if (nextPoll - System.nanoTime() <= 0) {
+                    // A directory that is gone has been removed from the backend by the events of its parent.
+                    unwatchedDirs.removeIf(dir -> !Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS));
+                    List<Path> dirs = topmost(unwatchedDirs);
+                    if (!dirs.isEmpty()) switchboard.refreshSubtrees(dirs);
+                    nextPoll = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(unwatchedPollMillis);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ignored) {
+            // The watcher has been closed.
+        }
+    }
+
+    /**
+     * Merges the events of a key into the pending changes.
+     * @param key the signalled key
+     */
+    private void collectEvents(WatchKey key) {
+        Path dir = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                overflowedDirs.add(dir);
+            } else {
+                Path path = dir.resolve((Path) event.context());
+                changedPaths.add(path);
+                if (event.kind() == ENTRY_CREATE) createdPaths.add(path);
+            }
+        }
+        key.reset();
+    }
+
+    /**
+     * Finds out what happened to each of the pending paths and sends the results to the backend.
+     */
+    private void applyChanges() {
+        HashSet<String> removed = new HashSet<>();
+        ArrayList<FileModel> upserts = new ArrayList<>();
+        ArrayList<String> rewalkedDirs = new ArrayList<>();
+        ArrayList<Path> dirsToWalk = new ArrayList<>(overflowedDirs);
+
+        for (Path path : changedPaths) {
+            BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            } catch (IOException e) {
+                removed.add(path.toString());
+                continue;
+            }
+            long timestamp = attrs.lastModifiedTime().toInstant().getEpochSecond();
+            if (attrs.isDirectory()) {
+                if (options.isExcluded(path)) continue;
+                upserts.add(new FileModel(path.toString(), -1L, timestamp));
+                // Anything created inside a new directory before we started watching it has no events of its own.
+                if (createdPaths.contains(path)) dirsToWalk.add(path);
+            } else if (attrs.isRegularFile()) {
+                upserts.add(new FileModel(path.toString(), attrs.size(), timestamp));
+            } else {
+                removed.add(path.toString());
+            }
+        }
+
+        ParallelFileTreeVisitor walker = (path, size, timestamp) -> {
+            upserts.add(new FileModel(path, size, timestamp));
+            if (size == -1) register(Paths.get(path));
+        };
+        // On Linux, an overflow is reported to every watched directory, and walking each of them would walk a
+        // nested directory once for every one of its ancestors.
+        for (Path dir : topmost(dirsToWalk)) {
+            if (!Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS)) continue;
+            register(dir);
+            rewalkedDirs.add(dir.toString());
+            walker.walk(dir, options);
+        }
+
+        changedPaths.clear();
+        createdPaths.clear();
+        overflowedDirs.clear();
+        switchboard.applyIndexChanges(removed, upserts, rewalkedDirs);
+    }
+}
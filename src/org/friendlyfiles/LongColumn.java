@@ -0,0 +1,176 @@
+package org.friendlyfiles;
+
+import org.roaringbitmap.RangeBitmap;
+import org.roaringbitmap.RoaringBitmap;
+import org.roaringbitmap.RoaringBitmapWriter;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A growable array of primitive longs, holding one value per item of a {@link PostingList}.
+ * <p>
+ * An {@code ArrayList<Long>} spends a reference and a boxed object on every value, which is about four times the
+ * memory of the value itself, and every read has to chase a pointer to unbox it.  Scanning a column instead walks a
+ * single contiguous array, which the JIT can unroll and vectorize.
+ * <p>
+ * A column can also be indexed with a {@link RangeBitmap}, which answers range queries by combining one bitmap per bit
+ * of the values instead of looking at every value.  The index is immutable, so it is built once the values have
+ * settled (see {@link #buildRangeIndex}).  Values appended or changed afterwards are tracked on the side and scanned
+ * one by one, which is cheap as long as there are few of them.  Negative values (the sizes of directories and the
+ * values of removed items) can't be put in the index, so they are kept in a bitmap of their own.
+ */
+final class LongColumn {
+    private long[] values;
+    private int size = 0;
+    // The values before `indexed` are in `rangeIndex`, except for the negative ones and the ones in `changed`.
+    private RangeBitmap rangeIndex = null;
+    private int indexed = 0;
+    private long indexedMax = 0;
+    private RoaringBitmap negatives = new RoaringBitmap();
+    private final RoaringBitmap changed = new RoaringBitmap();
+
+    /**
+     * Creates an empty column.
+     */
+    LongColumn() {
+        this(16);
+    }
+
+    /**
+     * Creates an empty column with room for a given number of values.
+     * @param capacity the number of values to make room for
+     */
+    LongColumn(int capacity) {
+        values = new long[Math.max(capacity, 1)];
+    }
+
+    /**
+     * @return the number of values in the column
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @param index the index of a value
+     * @return the value at the index
+     */
+    long get(int index) {
+        assert (index < size);
+        return values[index];
+    }
+
+    /**
+     * @param index the index of a value
+     * @param value the new value
+     */
+    void set(int index, long value) {
+        assert (index < size);
+        values[index] = value;
+        if (index < indexed) changed.add(index);
+    }
+
+    /**
+     * Appends a value to the end of the column.
+     * @param value the value to append
+     */
+    void add(long value) {
+        if (size == values.length) ensureCapacity(size * 2);
+        values[size++] = value;
+    }
+
+    /**
+     * Appends all the values of another column to the end of this one.
+     * @param other the column to copy from
+     */
+    void addAll(LongColumn other) {
+        ensureCapacity(size + other.size);
+        System.arraycopy(other.values, 0, values, size, other.size);
+        size += other.size;
+    }
+
+    /**
+     * Makes sure that the column can hold a given number of values without growing again.
+     * @param capacity the number of values
+     */
+    void ensureCapacity(int capacity) {
+        if (capacity > values.length) values = Arrays.copyOf(values, capacity);
+    }
+
+    /**
+     * Indexes every value that is in the column, so that {@link #selectRange} doesn't have to scan them.  This replaces
+     * any index that was built before.
+     */
+    void buildRangeIndex() {
+        long max = 0;
+        for (int i = 0; i < size; ++i) {
+            max = Math.max(max, values[i]);
+        }
+        RangeBitmap.Appender appender = RangeBitmap.appender(max);
+        RoaringBitmapWriter<RoaringBitmap> negativeWriter = RoaringBitmapWriter.writer().get();
+        for (int i = 0; i < size; ++i) {
+            if (values[i] < 0) negativeWriter.add(i);
+            appender.add(Math.max(values[i], 0));
+        }
+        rangeIndex = appender.build();
+        indexed = size;
+        indexedMax = max;
+        negatives = negativeWriter.get();
+        changed.clear();
+    }
+
+    /**
+     * Finds the indices of all the values in a range.  The indexed values are looked up in the range index, and the
+     * rest are scanned.
+     * @param lower the smallest value to select, which must not be negative
+     * @param upper the largest value to select
+     * @return the matching indices
+     */
+    RoaringBitmap selectRange(long lower, long upper) {
+        assert (lower >= 0);
+        RoaringBitmap result;
+        if (rangeIndex == null || lower > upper || lower > indexedMax) {
+            result = new RoaringBitmap();
+        } else if (lower == 0 && upper >= indexedMax) {
+            // Every indexed value is in the range, so the index doesn't even have to be read.
+            result = RoaringBitmap.bitmapOfRange(0, indexed);
+        } else {
+            result = rangeIndex.between(lower, Math.min(upper, indexedMax));
+        }
+        result.andNot(negatives);
+        result.andNot(changed);
+
+        // The indices come out in increasing order, so we can append them instead of inserting them.
+        RoaringBitmapWriter<RoaringBitmap> writer = RoaringBitmapWriter.writer().get();
+        changed.forEach((int i) -> {
+            if (values[i] >= lower && values[i] <= upper) writer.add(i);
+        });
+        for (int i = indexed; i < size; ++i) {
+            if (values[i] >= lower && values[i] <= upper) writer.add(i);
+        }
+        result.or(writer.get());
+        return result;
+    }
+
+    /**
+     * Writes the values to a buffer, advancing its position past them.
+     * @param buffer the buffer to write to
+     */
+    void writeTo(ByteBuffer buffer) {
+        buffer.asLongBuffer().put(values, 0, size);
+        buffer.position(buffer.position() + size * 8);
+    }
+
+    /**
+     * Appends values read from a buffer, advancing its position past them.
+     * @param buffer the buffer to read from
+     * @param count the number of values to read
+     */
+    void readFrom(ByteBuffer buffer, int count) {
+        ensureCapacity(size + count);
+        buffer.asLongBuffer().get(values, size, count);
+        buffer.position(buffer.position() + count * 8);
+        size += count;
+    }
+}
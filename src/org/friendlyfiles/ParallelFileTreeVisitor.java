@@ -1,10 +1,8 @@
 package org.friendlyfiles;
 
-import java.io.IOException;
 import java.nio.file.*;
-import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
 import java.util.concurrent.*;
-import java.util.stream.Stream;
 
 /**
  * Defines an object that walks the file tree in parallel; it retrieves file information and passes it to a method.
@@ -13,10 +11,13 @@ import java.util.stream.Stream;
  * <p>
  * Although {@link #walk(Path)} is a default method, it should NOT be overridden.  It is defined as such to allow this
  * interface to be a functional interface.
+ * <p>
+ * Each visit makes a {@link String} for {@link #op}.  Callers that can work with the walker's buffers directly should
+ * pass a {@link FileSink} to {@link #walk(Collection, WalkOptions, FileSink)} instead.
  */
 @FunctionalInterface
-public interface ParallelFileTreeVisitor {
-    ExecutorService exec = Executors.newWorkStealingPool();
+public interface ParallelFileTreeVisitor extends FileSink {
+    ForkJoinPool exec = new ForkJoinPool();
 
     /**
      * The operation to be performed on every file that is visited.
@@ -25,99 +26,132 @@ public interface ParallelFileTreeVisitor {
      */
     void op(String path, long size, long timestamp);
 
+    @Override
+    default void accept(char[] path, int offset, int length, long size, long timestamp) {
+        op(new String(path, offset, length), size, timestamp);
+    }
+
     /**
-     * Starts the walker after it has been defined.
-     * @implNote collates the results and calls {@link #op} on each of them
+     * Starts the walker after it has been defined, using the default {@link WalkOptions}.
      * @param topPath the path of the top of the file tree to walk
+     * @return measurements taken during the walk
      */
-    default void walk(Path topPath) {
-        LinkedTransferQueue<FileModel> result = new LinkedTransferQueue<>();
-        walkUpperTree(result, topPath);
-        try {
-            while (true) {
-                FileModel res = result.poll(500, TimeUnit.MILLISECONDS);
-                if (res == null) break;
-                op(res.path, res.size, res.timestamp);
-            }
-        } catch (InterruptedException e) {
-            throw new Error(e);
-        }
+    default WalkStats walk(Path topPath) {
+        return walk(topPath, new WalkOptions());
     }
 
     /**
-     * Divides the directories to walk among threads and starts walking the file tree.
-     * @param result the queue into which to put each file's information
+     * Starts the walker on a single file tree, ignoring the roots in `options`.
      * @param topPath the path of the top of the file tree to walk
+     * @param options the parameters of the walk
+     * @return measurements taken during the walk
      */
-    static void walkUpperTree(LinkedTransferQueue<FileModel> result, Path topPath) {
-        try (Stream<Path> paths = Files.list(topPath)) {
-            Stream<Path> pathStream;
-            // We don't want to index the running processes because they are volatile and not useful to the user.
-            if (System.getProperty("os.name").equals("Linux")) {
-                pathStream = paths.filter(p -> !p.equals(Paths.get("/proc")));
-            } else {
-                pathStream = paths;
-            }
-            // Assigns one thread to each direct child directory beneath `topPath`.
-            pathStream.forEach(p -> {
-                try {
-                    if (Files.isDirectory(p) && !Files.isSymbolicLink(p)) {
-                        exec.submit(() -> walkLowerTree(result, p));
-                        result.add(new FileModel(p.toString(), -1L, Files.getLastModifiedTime(p).toInstant().getEpochSecond()));
-                    } else {
-                        result.add(new FileModel(p.toString(), Files.size(p), Files.getLastModifiedTime(p).toInstant().getEpochSecond()));
-                    }
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
-            });
-        } catch (Exception e) {
-            throw new Error(e);
-        }
+    default WalkStats walk(Path topPath, WalkOptions options) {
+        return walk(Collections.singletonList(topPath), options);
     }
 
     /**
-     * The walker task for each thread.
-     * @param result the queue into which to put each file's information
-     * @param topPath the path of the top of the file tree to walk
+     * Starts the walker on the roots in `options`.
+     * @param options the parameters of the walk
+     * @return measurements taken during the walk
      */
-    static void walkLowerTree(LinkedTransferQueue<FileModel> result, Path topPath) {
-        try {
-            Files.walkFileTree(topPath, new SimpleFileVisitor<Path>() {
-                @Override
-                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
-                    return attrs.isSymbolicLink() ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
-                }
+    default WalkStats walk(WalkOptions options) {
+        return walk(options.getRoots(), options);
+    }
 
-                @Override
-                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
-                    if (attrs.isRegularFile()) {
-                        try {
-                            result.add(new FileModel(file.toString(), Files.size(file), Files.getLastModifiedTime(file).toInstant().getEpochSecond()));
-                        } catch (IOException e) {
-                            throw new Error(e);
-                        }
-                    }
-                    return FileVisitResult.CONTINUE;
-                }
+    /**
+     * Starts the walker after it has been defined.
+     * @param topPaths the tops of the file trees to walk; duplicates and roots inside other roots are skipped
+     * @param options the parameters of the walk
+     * @return measurements taken during the walk
+     */
+    default WalkStats walk(Collection<Path> topPaths, WalkOptions options) {
+        return walk(topPaths, options, this);
+    }
 
-                @Override
-                public FileVisitResult postVisitDirectory(Path dir, IOException exc) {
-                    try {
-                        result.add(new FileModel(dir.toString(), -1L, Files.getLastModifiedTime(dir).toInstant().getEpochSecond()));
-                    } catch (IOException e) {
-                        throw new Error(e);
+    /**
+     * Walks the file trees, passing every file and directory to a sink.
+     * @implNote collates the results and passes each of them to the sink.  The walker threads hand their results
+     * over in batches through a bounded queue, so they block instead of piling up files in memory when the sink
+     * cannot keep up with them.  The method returns as soon as the last walker thread is done.  The tree is divided
+     * among the threads by {@link DirectoryWalkTask} or {@link ThreadPerDirectoryWalker}, depending on
+     * {@link WalkOptions#getBackend()}.
+     * @param topPaths the tops of the file trees to walk; duplicates and roots inside other roots are skipped
+     * @param options the parameters of the walk
+     * @param sink the sink to fill; it is only ever called from the calling thread
+     * @return measurements taken during the walk
+     */
+    static WalkStats walk(Collection<Path> topPaths, WalkOptions options, FileSink sink) {
+        return walk(topPaths, options, Collections.singletonList(sink));
+    }
+
+    /**
+     * Walks the file trees, dividing the files and directories among several sinks.  Each sink gets a thread of its
+     * own (the first one uses the calling thread), so sinks that do expensive work on each file can keep up with the
+     * walker threads.  Every file goes to exactly one sink, in no particular order.
+     * @param topPaths the tops of the file trees to walk; duplicates and roots inside other roots are skipped
+     * @param options the parameters of the walk
+     * @param sinks the sinks to fill; each one is only ever called from a single thread
+     * @return measurements taken during the walk
+     */
+    static WalkStats walk(Collection<Path> topPaths, WalkOptions options, List<? extends FileSink> sinks) {
+        WalkStats stats = new WalkStats();
+        long start = System.nanoTime();
+        FileBatchQueue result = new FileBatchQueue(options);
+        DirectoryLister lister = new DirectoryLister(result, options, stats);
+        DirectoryWalkTask.Walk forkJoinWalk = null;
+        ThreadPerDirectoryWalker threadPerDirectoryWalker = null;
+        // The walk runs in other threads so that this thread is free to consume its results; otherwise, a full queue
+        // would block forever.
+        // A root given twice would otherwise be skipped by neither copy's nesting check, and walked twice.
+        LinkedHashSet<Path> roots = new LinkedHashSet<>();
+        for (Path topPath : topPaths) roots.add(topPath.normalize());
+        for (Path topPath : roots) {
+            if (roots.stream().anyMatch(other -> !other.equals(topPath) && topPath.startsWith(other))) continue;
+            switch (options.getBackend()) {
+                case FORK_JOIN:
+                    if (forkJoinWalk == null) forkJoinWalk = new DirectoryWalkTask.Walk(lister, result, exec);
+                    forkJoinWalk.submit(lister.rootOf(topPath));
+                    break;
+                case VIRTUAL_THREADS:
+                    if (threadPerDirectoryWalker == null) {
+                        threadPerDirectoryWalker = new ThreadPerDirectoryWalker(lister, result);
                     }
-                    return FileVisitResult.CONTINUE;
-                }
+                    threadPerDirectoryWalker.submit(lister.rootOf(topPath));
+                    break;
+            }
+        }
+        // Now that every root has its own task, the walk can end whenever they do.
+        result.taskFinished();
 
-                @Override
-                public FileVisitResult visitFileFailed(Path file, IOException exc) {
-                    return FileVisitResult.CONTINUE;
+        ArrayList<Thread> consumers = new ArrayList<>();
+        ArrayList<Throwable> failures = new ArrayList<>();
+        for (FileSink sink : sinks.subList(1, sinks.size())) {
+            Thread consumer = new Thread(() -> {
+                try {
+                    result.drainTo(sink, stats);
+                } catch (Throwable e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
                 }
-            });
-        } catch (IOException e) {
+            }, "FriendlyFiles walk consumer");
+            consumer.setDaemon(true);
+            consumer.start();
+            consumers.add(consumer);
+        }
+        try {
+            result.drainTo(sinks.get(0), stats);
+            for (Thread consumer : consumers) {
+                consumer.join();
+            }
+        } catch (InterruptedException e) {
             throw new Error(e);
+        } finally {
+            if (threadPerDirectoryWalker != null) threadPerDirectoryWalker.shutDown();
         }
+        if (!failures.isEmpty()) throw new Error(failures.get(0));
+        stats.setElapsedNanos(System.nanoTime() - start);
+        return stats;
     }
 }
@@ -0,0 +1,142 @@
+package org.friendlyfiles;
+
+/**
+ * Finds the index of an item of a {@link PostingList} from its path in constant time.
+ * <p>
+ * This is a hash table with open addressing, but it doesn't hold the paths themselves: that would keep a second copy
+ * of every path, which is what {@link PathStore} exists to avoid.  Each slot holds the hash of a path in its upper half
+ * and the path's index in the store (plus one) in its lower half.  A lookup only decodes a path from the store when its
+ * hash matches, so a miss almost never touches the store.
+ * <p>
+ * The hash of a path is {@link String#hashCode}, which can be computed just as cheaply from a buffer of characters, so
+ * adding a path from a walk doesn't need a string.
+ */
+final class PathIndex {
+    private static final long EMPTY = 0;
+    // A removed entry, which lookups have to probe past.
+    private static final long TOMBSTONE = -1;
+
+    private long[] slots = new long[16];
+    private int size = 0;
+    private int tombstones = 0;
+
+    /**
+     * Builds the index for every path in a store at once.
+     * @param paths the paths to index
+     * @return the index
+     */
+    static PathIndex build(PathStore paths) {
+        PathIndex index = new PathIndex();
+        index.ensureCapacity(paths.size());
+        for (int i = 0; i < paths.size(); ++i) {
+            if (!paths.isRemoved(i)) index.add(paths.get(i).hashCode(), i);
+        }
+        return index;
+    }
+
+    /**
+     * Computes the hash of a path in a buffer, which is the same as the hash of the path as a string.
+     * @param chars a buffer containing the path
+     * @param offset the index of the first character of the path in the buffer
+     * @param length the number of characters in the path
+     * @return the hash
+     */
+    static int hash(char[] chars, int offset, int length) {
+        int hash = 0;
+        for (int i = offset; i < offset + length; ++i) {
+            hash = 31 * hash + chars[i];
+        }
+        return hash;
+    }
+
+    /**
+     * Records the index of a path.
+     * @param hash the hash of the path (see {@link #hash})
+     * @param id the index of the path in the store
+     */
+    void add(int hash, int id) {
+        ensureCapacity(size + 1);
+        int mask = slots.length - 1;
+        for (int slot = spread(hash) & mask; ; slot = (slot + 1) & mask) {
+            if (slots[slot] == EMPTY || slots[slot] == TOMBSTONE) {
+                if (slots[slot] == TOMBSTONE) --tombstones;
+                slots[slot] = entry(hash, id);
+                ++size;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Forgets the index of a path.
+     * @param hash the hash of the path
+     * @param id the index of the path in the store
+     */
+    void remove(int hash, int id) {
+        long entry = entry(hash, id);
+        int mask = slots.length - 1;
+        for (int slot = spread(hash) & mask; slots[slot] != EMPTY; slot = (slot + 1) & mask) {
+            if (slots[slot] == entry) {
+                slots[slot] = TOMBSTONE;
+                --size;
+                ++tombstones;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Finds the index of a path.
+     * @param path the path to look for
+     * @param paths the store that the indices refer to
+     * @return the index of the path, or -1 if it is not in the store
+     */
+    int find(String path, PathStore paths) {
+        if (path.isEmpty()) return -1;
+        int hash = path.hashCode();
+        byte[] encoded = null;
+        int mask = slots.length - 1;
+        for (int slot = spread(hash) & mask; slots[slot] != EMPTY; slot = (slot + 1) & mask) {
+            long entry = slots[slot];
+            if (entry == TOMBSTONE || (int) (entry >>> 32) != hash) continue;
+            if (encoded == null) encoded = PathStore.encode(path);
+            int id = (int) entry - 1;
+            if (paths.matches(id, encoded)) return id;
+        }
+        return -1;
+    }
+
+    /**
+     * Makes room for a number of entries, keeping the table at most half full so that probe sequences stay short.
+     * Tombstones are dropped whenever the table is rebuilt.
+     */
+    private void ensureCapacity(int entries) {
+        if ((entries + tombstones) * 2L <= slots.length) return;
+        int capacity = slots.length;
+        while (entries * 2L > capacity) capacity *= 2;
+        long[] old = slots;
+        slots = new long[capacity];
+        tombstones = 0;
+        int mask = capacity - 1;
+        for (long entry : old) {
+            if (entry == EMPTY || entry == TOMBSTONE) continue;
+            int slot = spread((int) (entry >>> 32)) & mask;
+            while (slots[slot] != EMPTY) slot = (slot + 1) & mask;
+            slots[slot] = entry;
+        }
+    }
+
+    private static long entry(int hash, int id) {
+        // The index is stored plus one, so that no entry is EMPTY.  An index is never -2, so no entry is a TOMBSTONE.
+        return ((long) hash << 32) | ((id + 1) & 0xffffffffL);
+    }
+
+    /**
+     * Mixes the bits of a hash, since the slot is chosen by its lowest bits and paths that differ only in their last
+     * few characters would otherwise crowd together.
+     */
+    private static int spread(int hash) {
+        hash *= 0x9e3779b9;
+        return hash ^ (hash >>> 16);
+    }
+}
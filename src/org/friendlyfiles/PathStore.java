@@ -0,0 +1,119 @@
+package org.friendlyfiles;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Holds the paths of the items in a {@link PostingList}, indexed by item.
+ * <p>
+ * Paths are kept as UTF-8 bytes and only become {@link String}s when they are asked for with {@link #get}, which
+ * should be saved for the results that are handed to the UI.  The other methods compare a stored path with a string
+ * that has been run through {@link #encode} without decoding the path.  Since UTF-8 never encodes a character as part
+ * of another character, comparing the bytes gives the same answers as comparing the strings.
+ * <p>
+ * A removed path leaves an empty path in its place, so that the indices of the other paths stay the same.
+ */
+interface PathStore {
+    /**
+     * @return the number of paths in the store, including the ones that have been removed
+     */
+    int size();
+
+    /**
+     * Appends a path to the store.
+     * @param chars a buffer containing the path
+     * @param offset the index of the first character of the path in the buffer
+     * @param length the number of characters in the path
+     * @return the index of the new path
+     */
+    int add(char[] chars, int offset, int length);
+
+    /**
+     * Ditto.
+     * @param path the path to append
+     * @return the index of the new path
+     */
+    default int add(String path) {
+        return add(path.toCharArray(), 0, path.length());
+    }
+
+    /**
+     * Appends every path of another store, keeping their order.
+     * @param other the store to copy from; it must not be used afterwards
+     */
+    void addAll(PathStore other);
+
+    /**
+     * Makes a read-only copy of the store that doesn't change when the store does, so that it can be read by another
+     * thread.  Implementations should share as much memory with the store as they can.
+     * @return the copy
+     */
+    PathStore snapshot();
+
+    /**
+     * @param index the index of a path
+     * @return the path, or "" if it has been removed
+     */
+    String get(int index);
+
+    /**
+     * @param index the index of a path
+     * @return whether the path has been removed
+     */
+    boolean isRemoved(int index);
+
+    /**
+     * Replaces a path with an empty one.
+     * @param index the index of the path to remove
+     */
+    void remove(int index);
+
+    /**
+     * @param index the index of a path
+     * @param path an encoded string
+     * @return whether the path is the string
+     */
+    boolean matches(int index, byte[] path);
+
+    /**
+     * @param index the index of a path
+     * @param prefix an encoded string
+     * @return whether the path starts with the string
+     */
+    boolean startsWith(int index, byte[] prefix);
+
+    /**
+     * @param index the index of a path
+     * @param infix an encoded string
+     * @return whether the path contains the string
+     */
+    boolean contains(int index, byte[] infix);
+
+    /**
+     * @param index the index of a path
+     * @param infix an encoded string
+     * @return whether the last part of the path (the item's name) contains the string
+     */
+    boolean nameContains(int index, byte[] infix);
+
+    /**
+     * @return the number of bytes needed by {@link #writeTo}
+     */
+    long serializedSize();
+
+    /**
+     * Writes every path to a buffer, advancing the buffer's position.  Each implementation has its own format, which is
+     * read back by its own static {@code readFrom} method.
+     * @param buffer the buffer to write to
+     */
+    void writeTo(ByteBuffer buffer);
+
+    /**
+     * Encodes a string the same way that the paths are stored, so that it can be compared with them.
+     * @param str the string to encode
+     * @return the UTF-8 bytes of the string
+     */
+    static byte[] encode(String str) {
+        return str.getBytes(StandardCharsets.UTF_8);
+    }
+}
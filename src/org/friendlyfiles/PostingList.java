@@ -1,7 +1,6 @@
 package org.friendlyfiles;
 
 import org.friendlyfiles.models.SortStep;
-import org.friendlyfiles.ui.UIController;
 import org.roaringbitmap.*;
 
 import java.io.*;
@@ -10,6 +9,9 @@ import java.nio.channels.FileChannel;
 import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import java.util.function.IntConsumer;
 import java.util.stream.*;
 
 /**
@@ -93,6 +95,9 @@ import java.util.stream.*;
  * Thankfully, since we know the exact number of possible trigrams and the pattern of the numbers that make them up,
  * the trigrams, we can make a formula to directly compute a unique index for each trigram in the posting list (see
  * the methods `mapFirstTrigramChar` and `mapSecondTrigramChar`).
+ * <p>
+ * Queries of one or two characters have no trigrams.  So that they don't have to look at every string, each string is
+ * also broken into its single characters and its (sorted) pairs of characters, which get slots after the trigrams.
  * <pre></pre>
  * <p>
  * Sets:
@@ -121,14 +126,69 @@ import java.util.stream.*;
  * mapped files use operating system magic to avoid this overhead.
  */
 public final class PostingList {
+    // Every database file starts with these, so that a file written in an older format is recognized and rebuilt
+    // instead of being misread.
+    private static final int FILE_MAGIC = 0x46464442; // "FFDB"
+    private static final int FILE_VERSION = 5;
+    // The posting list has a slot for each sorted trigram, followed by one for each character and one for each sorted
+    // pair of characters (see `mapBigramToIndex`).
+    private static final int NUM_TRIGRAMS = 45760;
+    private static final int UNIGRAM_OFFSET = NUM_TRIGRAMS;
+    private static final int BIGRAM_OFFSET = UNIGRAM_OFFSET + 64;
+    private static final int NUM_LISTS = BIGRAM_OFFSET + 64 * 65 / 2;
+    // The items are renumbered without the holes left by removed items once this fraction of the slots are holes.
+    private static final double compactionHoleRatio =
+            Double.parseDouble(System.getProperty("friendlyfiles.index.compactionHoleRatio", "0.2"));
+    // Below this, renumbering costs more than the holes do.
+    private static final int MIN_HOLES_TO_COMPACT = 1024;
+    // How many bitmaps, or values of a column, a compaction copies each time it takes the switchboard's lock.
+    private static final int COMPACTION_COPY_BITMAPS = 256;
+    private static final int COMPACTION_COPY_VALUES = 1 << 16;
+    // Whether to keep a second set of trigrams for just the names of the items, so that a search for a name doesn't
+    // match everything beneath a directory with that name (see `QueryFilter#setNamesOnly`).  This is off by default,
+    // since it costs as much memory again as the trigrams of the paths and the UI never searches names only yet.
+    private static final boolean indexNames =
+            Boolean.parseBoolean(System.getProperty("friendlyfiles.index.names", "false"));
+
     private RoaringBitmap stage1Cache;
     private final String plFileLocation;
-    private final List<RoaringBitmap> lists;
-    private ArrayList<String> paths;
-    private ArrayList<Long> sizes;
-    private ArrayList<Long> timestamps;
-    private long totalPathsSize = 0;
-    private byte numHoles = 0;
+    private List<RoaringBitmap> lists;
+    // The trigrams of the items' names, or null if they aren't indexed.
+    private List<RoaringBitmap> nameLists;
+    // Scratch space for finding the distinct n-grams of a path; see `collectGrams`.
+    private final long[] seenGrams = new long[(NUM_LISTS + 63) / 64];
+    private int[] gramScratch = new int[256];
+    // Scratch space for intersecting many trigrams at once; see `getStrings`.  Queries run on several threads.
+    private static final ThreadLocal<long[]> aggregationBuffer = ThreadLocal.withInitial(() -> new long[1024]);
+    // How many times a trigram's bitmap was changed, and for how many paths.
+    private long postingMutations = 0;
+    private long pathsIndexed = 0;
+    // Non-null only during a bulk build; see `startBulkBuild`.
+    private List<RoaringBitmapWriter<RoaringBitmap>> bulkWriters = null;
+    private List<RoaringBitmapWriter<RoaringBitmap>> nameBulkWriters = null;
+    private PathStore paths;
+    // Not kept up to date during a bulk build; see `sortDepthFirst`.
+    private PathIndex pathIndex = new PathIndex();
+    // Like the directory tree, this is filled in after a bulk build (see `sortDepthFirst`).
+    private ExtensionIndex extensions = new ExtensionIndex();
+    private LongColumn sizes;
+    private LongColumn timestamps;
+    private DirectoryTree tree = new DirectoryTree();
+    private int numHoles = 0;
+    // Non-null while a compaction is running; see `compactInBackground`.  Each entry replays a change on the compacted
+    // copy, given the copy's index for each of our indices.
+    private List<BiConsumer<PostingList, int[]>> journal = null;
+    // Runs the compactions of all posting lists, one at a time.  Its thread is a daemon, so that a compaction doesn't
+    // keep the application running after the window is closed.
+    private static final ExecutorService compactor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "PostingList compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Counts the compactions, so that filters whose visible items refer to older indices can be brought up to date
+    // (see `renumberVisibleItems`).
+    private int numbering = 0;
+    private int[] lastRenumbering = new int[0];
 
     /**
      * Sets up an empty posting list at a given location.
@@ -136,14 +196,22 @@ public final class PostingList {
      */
     public PostingList(Path fileLocation) {
         this.plFileLocation = fileLocation.toString();
-        ArrayList<RoaringBitmap> tmpLists = new ArrayList<>(45760);
-        for (int i = 0; i < 45760; i++) {
+        lists = newLists();
+        nameLists = indexNames ? newLists() : null;
+        paths = new FrontCodedPathStore();
+        sizes = new LongColumn();
+        timestamps = new LongColumn();
+    }
+
+    /**
+     * @return a bitmap for each possible n-gram
+     */
+    private static List<RoaringBitmap> newLists() {
+        ArrayList<RoaringBitmap> tmpLists = new ArrayList<>(NUM_LISTS);
+        for (int i = 0; i < NUM_LISTS; i++) {
             tmpLists.add(new RoaringBitmap());
         }
-        lists = Collections.unmodifiableList(tmpLists);
-        paths = new ArrayList<>();
-        sizes = new ArrayList<>();
-        timestamps = new ArrayList<>();
+        return tmpLists;
     }
 
     /**
@@ -160,7 +228,9 @@ public final class PostingList {
      * @throws IOException if there is an error writing to the file
      */
     public void serializeTo(String filename) throws IOException {
-        long listsSerializedSize = lists.parallelStream().mapToLong(item -> {
+        Stream<RoaringBitmap> allLists = nameLists == null ? lists.stream()
+                                                           : Stream.concat(lists.stream(), nameLists.stream());
+        long listsSerializedSize = allLists.parallel().mapToLong(item -> {
             item.runOptimize();
             return item.serializedSizeInBytes();
         }).sum();
@@ -169,12 +239,13 @@ public final class PostingList {
                     FileChannel.MapMode.READ_WRITE,
                     0,
                     // listsSerializedSize: Size of all the serialized lists
-                    // totalStringsSize: Number of bytes needed to represent all the strings
-                    // strings.size() * 4: Integers representing the size of the strings
+                    // paths.serializedSize(): Number of bytes needed to represent all the strings
                     // sizes.size() * 8: Size of the array of longs representing file sizes
                     // timestamps.size() * 8: Size of the array of longs representing file dates
+                    // 8: Integers representing the file format and its version
+                    // 1: Byte telling whether the lists for the names follow the lists for the paths
                     // 4: Integer representing the number of strings
-                    // 1: Byte representing the number of holes
+                    // 4: Integer representing the number of holes
                     //
                     // 16: There is no good reason for this number to be here.
                     //     Due to the way memory mapping works, the OS doesn't always give us a file of the exact size
@@ -182,19 +253,20 @@ public final class PostingList {
                     //     slightly different size.  To prevent buffer overflows, we need to ask for a little more
                     //     memory than we actually need.  16 seems to be a good size that makes the function work
                     //     consistently.
-                    listsSerializedSize + (totalPathsSize + paths.size() * 4L) + (sizes.size() * 8L) + (timestamps.size() * 8L) + 4 + 1 + 16
+                    listsSerializedSize + paths.serializedSize() + (sizes.size() * 8L) + (timestamps.size() * 8L) + 8 + 1 + 4 + 4 + 16
             );
+            mbb.putInt(FILE_MAGIC);
+            mbb.putInt(FILE_VERSION);
             lists.forEach(item -> {
                 item.serialize(mbb);
             });
+            mbb.put((byte) (nameLists == null ? 0 : 1));
+            if (nameLists != null) nameLists.forEach(item -> item.serialize(mbb));
             mbb.putInt(paths.size());
-            mbb.put(numHoles);
-            paths.forEach(item -> {
-                mbb.putInt(item.getBytes().length);
-                mbb.put(item.getBytes());
-            });
-            sizes.forEach(mbb::putLong);
-            timestamps.forEach(mbb::putLong);
+            mbb.putInt(numHoles);
+            paths.writeTo(mbb);
+            sizes.writeTo(mbb);
+            timestamps.writeTo(mbb);
         }
     }
 
@@ -202,98 +274,576 @@ public final class PostingList {
      * Creates a new posting list by reading it from a file.
      * @param filename the name of the file to read from
      * @return a new posting list
-     * @throws IOException if the file can't be read
+     * @throws IOException if the file can't be read, or if it was written in a different format
      */
     public static PostingList deserializeFrom(Path filename) throws IOException {
         PostingList pl = new PostingList(filename);
+        boolean hasNames;
         try (RandomAccessFile file = new RandomAccessFile(filename.toString(), "r")) {
             MappedByteBuffer mbb = file.getChannel().map(
                     FileChannel.MapMode.READ_ONLY,
                     0,
                     file.length() - 12
             );
-            for (int i = 0; i < 45760; i++) {
-                RoaringBitmap item = pl.lists.get(i);
-                item.deserialize(mbb);
-                mbb.position(mbb.position() + item.serializedSizeInBytes());
+            if (mbb.getInt() != FILE_MAGIC || mbb.getInt() != FILE_VERSION) {
+                throw new IOException("`" + filename + "` is not a database file of version " + FILE_VERSION);
+            }
+            readLists(mbb, pl.lists);
+            hasNames = mbb.get() != 0;
+            if (hasNames) {
+                // The names are read even if they are no longer wanted, to get past them.
+                List<RoaringBitmap> names = newLists();
+                readLists(mbb, names);
+                if (pl.nameLists != null) pl.nameLists = names;
             }
             int numStrings = mbb.getInt();
-            pl.paths.ensureCapacity(numStrings);
             pl.sizes.ensureCapacity(numStrings);
             pl.timestamps.ensureCapacity(numStrings);
-            pl.numHoles = mbb.get();
-            for (int i = 0; i < numStrings; ++i) {
-                int strSize = mbb.getInt();
-                if (strSize > 0) {
-                    pl.totalPathsSize += strSize;
-                    byte[] bytes = new byte[strSize];
-                    mbb.get(bytes, 0, strSize);
-                    pl.paths.add(new String(bytes));
-                } else {
-                    pl.paths.add("");
-                }
-            }
-            for (int i = 0; i < numStrings; ++i) {
-                pl.sizes.add(mbb.getLong());
-            }
-            for (int i = 0; i < numStrings; ++i) {
-                pl.timestamps.add(mbb.getLong());
-            }
+            pl.numHoles = mbb.getInt();
+            pl.paths = FrontCodedPathStore.readFrom(mbb, numStrings);
+            pl.sizes.readFrom(mbb, numStrings);
+            pl.timestamps.readFrom(mbb, numStrings);
         }
+        if (pl.nameLists != null && !hasNames) pl.indexAllNames();
+        pl.pathIndex = PathIndex.build(pl.paths);
+        pl.extensions = ExtensionIndex.build(pl.paths);
+        pl.sizes.buildRangeIndex();
+        pl.timestamps.buildRangeIndex();
+        pl.tree = DirectoryTree.build(pl.paths, pl.sizes);
         return pl;
     }
 
+    /**
+     * Reads the bitmaps written by {@link #serializeTo}, advancing the buffer's position past them.
+     * @param mbb the buffer to read from
+     * @param into the bitmaps to read into
+     * @throws IOException if a bitmap can't be read
+     */
+    private static void readLists(MappedByteBuffer mbb, List<RoaringBitmap> into) throws IOException {
+        for (int i = 0; i < NUM_LISTS; i++) {
+            RoaringBitmap item = into.get(i);
+            item.deserialize(mbb);
+            mbb.position(mbb.position() + item.serializedSizeInBytes());
+        }
+    }
+
+    /**
+     * Adds the n-grams of every item's name, for a posting list that was written without them.
+     */
+    private void indexAllNames() {
+        for (int i = 0; i < paths.size(); ++i) {
+            if (paths.isRemoved(i)) continue;
+            char[] chars = paths.get(i).toCharArray();
+            addName(chars, 0, chars.length, i);
+        }
+    }
+
     /**
      * Reads necessary information from the filesystem into the backend in a background process
      * and swaps out the old data with the new data when it is done.
      */
     public void generateFromFilesystem(Switchboard switchboard) {
         Executors.newSingleThreadExecutor().submit(() -> {
-            PostingList pl = new PostingList(Paths.get(plFileLocation));
-            ParallelFileTreeVisitor walker = pl::add;
-            walker.walk(Paths.get(System.getProperty("user.dir")).getRoot());
-            
-            System.err.println("Finished Walking");
+            WalkOptions options = new WalkOptions();
+            // Each consumer of the walk fills a shard of its own, so adding to the posting lists is not limited to
+            // one thread.
+            ArrayList<PostingList> shards = new ArrayList<>();
+            for (int i = 0; i < options.getIndexShards(); ++i) {
+                PostingList shard = new PostingList(Paths.get(plFileLocation));
+                shard.startBulkBuild();
+                shards.add(shard);
+            }
+            List<FileSink> sinks = shards.stream().map(shard -> (FileSink) shard::add).collect(Collectors.toList());
+            WalkStats stats = ParallelFileTreeVisitor.walk(options.getRoots(), options, sinks);
+            long sealStart = System.nanoTime();
+            shards.parallelStream().forEach(PostingList::finishBulkBuild);
+            PostingList pl = mergeShards(shards);
+            pl.tree = DirectoryTree.build(pl.paths, pl.sizes);
+            pl.sortDepthFirst();
+
+            System.err.println("Finished Walking: " + stats);
+            System.err.printf("Sealed, merged, and renumbered %d shards in %d ms (%.1f posting updates per path)%n", shards.size(),
+                              (System.nanoTime() - sealStart) / 1_000_000, pl.getPostingMutationsPerPath());
             
             switchboard.swapInBackend(pl);
         });
     }
 
+    /**
+     * Puts an empty posting list into bulk build mode, in which adding an item is cheaper but nothing else is allowed
+     * until {@link #finishBulkBuild()} is called.
+     * <p>
+     * Items are always added with increasing indices, so each trigram's bitmap only ever grows at its end.  In bulk
+     * build mode, an appender collects each bitmap's last container on the side instead of searching for the
+     * container and growing it in place on every add.
+     */
+    void startBulkBuild() {
+        assert (paths.size() == 0);
+        bulkWriters = newWriters();
+        if (nameLists != null) nameBulkWriters = newWriters();
+    }
+
+    /**
+     * @return an appender for each possible n-gram
+     */
+    private static List<RoaringBitmapWriter<RoaringBitmap>> newWriters() {
+        List<RoaringBitmapWriter<RoaringBitmap>> writers = new ArrayList<>(NUM_LISTS);
+        for (int i = 0; i < NUM_LISTS; ++i) {
+            writers.add(RoaringBitmapWriter.writer().get());
+        }
+        return writers;
+    }
+
+    /**
+     * Seals the appenders of a bulk build and makes their bitmaps the posting list's own.
+     */
+    void finishBulkBuild() {
+        for (int i = 0; i < lists.size(); ++i) {
+            lists.set(i, bulkWriters.get(i).get());
+        }
+        bulkWriters = null;
+        if (nameLists != null) {
+            for (int i = 0; i < nameLists.size(); ++i) {
+                nameLists.set(i, nameBulkWriters.get(i).get());
+            }
+            nameBulkWriters = null;
+        }
+    }
+
+    /**
+     * Combines posting lists that were built from separate parts of the filesystem into one.  The items of each shard
+     * are renumbered to come after the items of the shards before it.  Thus, the shards' bitmaps for a trigram cover
+     * disjoint ranges, so combining them only has to join up the containers at the edges of each range.
+     * @param shards the posting lists to combine; they are taken over by the result and must not be used afterwards
+     * @return the combined posting list
+     */
+    private static PostingList mergeShards(List<PostingList> shards) {
+        PostingList pl = shards.get(0);
+        int[] offsets = new int[shards.size()];
+        for (int i = 1; i < shards.size(); ++i) {
+            offsets[i] = offsets[i - 1] + shards.get(i - 1).paths.size();
+        }
+        mergeLists(shards.stream().map(shard -> shard.lists).collect(Collectors.toList()), offsets);
+        if (pl.nameLists != null) {
+            mergeLists(shards.stream().map(shard -> shard.nameLists).collect(Collectors.toList()), offsets);
+        }
+        for (PostingList shard : shards.subList(1, shards.size())) {
+            pl.paths.addAll(shard.paths);
+            pl.sizes.addAll(shard.sizes);
+            pl.timestamps.addAll(shard.timestamps);
+            pl.postingMutations += shard.postingMutations;
+            pl.pathsIndexed += shard.pathsIndexed;
+        }
+        return pl;
+    }
+
+    /**
+     * Combines the bitmaps of the shards' trigrams into the first shard's bitmaps (see {@link #mergeShards}).
+     * @param shardLists the bitmaps of each shard
+     * @param offsets the number by which to renumber the items of each shard
+     */
+    private static void mergeLists(List<List<RoaringBitmap>> shardLists, int[] offsets) {
+        List<RoaringBitmap> merged = shardLists.get(0);
+        IntStream.range(0, merged.size()).parallel().forEach(trigram -> {
+            RoaringBitmap list = merged.get(trigram);
+            for (int i = 1; i < shardLists.size(); ++i) {
+                RoaringBitmap part = shardLists.get(i).get(trigram);
+                if (!part.isEmpty()) list.or(RoaringBitmap.addOffset(part, offsets[i]));
+            }
+        });
+    }
+
+    /**
+     * Renumbers the items so that each directory is followed by everything beneath it.  Afterwards, the items beneath
+     * any directory have a single range of indices, which a bitmap stores as one run instead of one bit per item.
+     * This is what makes the bitmaps of visible items cheap (see {@link #getSubtree}).  Removed items are dropped
+     * along the way.
+     * <p>
+     * The bitmaps are renumbered without breaking the paths into trigrams again.
+     * @return the new index of each item, or -1 for the removed items
+     */
+    int[] sortDepthFirst() {
+        assert (bulkWriters == null);
+        int[] order = tree.depthFirstOrder();
+        int[] newIds = new int[paths.size()];
+        Arrays.fill(newIds, -1);
+        for (int i = 0; i < order.length; ++i) {
+            newIds[order[i]] = i;
+        }
+
+        renumberLists(lists, newIds);
+        if (nameLists != null) renumberLists(nameLists, newIds);
+
+        PathStore sortedPaths = new FrontCodedPathStore();
+        PathIndex sortedPathIndex = new PathIndex();
+        ExtensionIndex sortedExtensions = new ExtensionIndex();
+        LongColumn sortedSizes = new LongColumn(order.length);
+        LongColumn sortedTimestamps = new LongColumn(order.length);
+        for (int id : order) {
+            String path = paths.get(id);
+            int sortedId = sortedPaths.add(path);
+            sortedPathIndex.add(path.hashCode(), sortedId);
+            sortedExtensions.add(path, sortedId);
+            sortedSizes.add(sizes.get(id));
+            sortedTimestamps.add(timestamps.get(id));
+        }
+        sortedSizes.buildRangeIndex();
+        sortedTimestamps.buildRangeIndex();
+        paths = sortedPaths;
+        pathIndex = sortedPathIndex;
+        extensions = sortedExtensions;
+        sizes = sortedSizes;
+        timestamps = sortedTimestamps;
+        tree = DirectoryTree.build(paths, sizes);
+        numHoles = 0;
+        return newIds;
+    }
+
+    /**
+     * Renumbers the items in the bitmaps of each trigram.
+     * @param lists the bitmaps to renumber in place
+     * @param newIds the new index of each item, or -1 to drop the item
+     */
+    private static void renumberLists(List<RoaringBitmap> lists, int[] newIds) {
+        IntStream.range(0, lists.size()).parallel().forEach(trigram -> {
+            RoaringBitmap list = lists.get(trigram);
+            if (list.isEmpty()) return;
+            int[] renumbered = new int[list.getCardinality()];
+            int count = 0;
+            for (PeekableIntIterator it = list.getIntIterator(); it.hasNext(); ) {
+                int newId = newIds[it.next()];
+                if (newId >= 0) renumbered[count++] = newId;
+            }
+            RoaringBitmap renumberedList = RoaringBitmap.bitmapOfUnordered(Arrays.copyOf(renumbered, count));
+            // Items beneath the same directory share many trigrams, which are now runs of consecutive indices.
+            renumberedList.runOptimize();
+            lists.set(trigram, renumberedList);
+        });
+    }
+
+    /**
+     * @return whether enough items have been removed that the holes they left should be compacted away, and no
+     *         compaction is running yet
+     */
+    boolean needsCompaction() {
+        return journal == null && bulkWriters == null && numHoles >= MIN_HOLES_TO_COMPACT
+               && numHoles >= compactionHoleRatio * paths.size();
+    }
+
+    /**
+     * Compacts away the holes left by removed items in a background process, and swaps the result in through
+     * {@link Switchboard#finishCompaction} when it is done.
+     * <p>
+     * This is called with the switchboard's lock held, so it only marks where the compaction starts: it snapshots the
+     * path store, which shares the encoded paths, and starts writing down the changes made from then on in a journal.
+     * The bitmaps and columns are copied on the compactor thread a chunk at a time, taking the lock for each chunk so
+     * that queries and changes can go on in between.  Whatever a chunk picks up from after the mark is either past the
+     * snapshot, and cut off, or made again by replaying the journal, which gives the same result.  The copy is
+     * renumbered depth-first (see {@link #sortDepthFirst}), which drops the holes and keeps the subtrees contiguous,
+     * and the journal is replayed on it right before it is swapped in.
+     * @param switchboard the switchboard through which to swap in the result, whose lock guards this posting list
+     */
+    void compactInBackground(Switchboard switchboard) {
+        PathStore snapshot = paths.snapshot();
+        int snapshotHoles = numHoles;
+        journal = new ArrayList<>();
+        compactor.execute(() -> {
+            try {
+                long start = System.nanoTime();
+                PostingList copy = new PostingList(Paths.get(plFileLocation));
+                int size = snapshot.size();
+                copyBitmaps(switchboard, () -> lists, copy.lists, size);
+                if (copy.nameLists != null) copyBitmaps(switchboard, () -> nameLists, copy.nameLists, size);
+                for (int from = 0; from < size; from += COMPACTION_COPY_VALUES) {
+                    synchronized (switchboard) {
+                        for (int i = from; i < Math.min(from + COMPACTION_COPY_VALUES, size); ++i) {
+                            copy.sizes.add(sizes.get(i));
+                            copy.timestamps.add(timestamps.get(i));
+                        }
+                    }
+                }
+                copy.paths = snapshot;
+                copy.numHoles = snapshotHoles;
+                copy.tree = DirectoryTree.build(copy.paths, copy.sizes);
+                int[] newIds = copy.sortDepthFirst();
+
+                System.err.printf("Compacted %d holes in %d ms%n", snapshotHoles, (System.nanoTime() - start) / 1_000_000);
+
+                switchboard.finishCompaction(this, copy, newIds);
+            } catch (RuntimeException | OutOfMemoryError e) {
+                System.err.println("Unable to compact the posting list: " + e);
+                switchboard.abandonCompaction(this);
+            }
+        });
+    }
+
+    /**
+     * Copies a set of posting lists for a compaction, a chunk at a time under the switchboard's lock, leaving out the
+     * items that were added after the compaction started.
+     * @param switchboard the switchboard whose lock guards the posting lists
+     * @param source gets the posting lists to copy; it is called under the lock
+     * @param target the posting lists of the copy, which are replaced
+     * @param size the number of items in the snapshot that the copy starts from
+     */
+    private static void copyBitmaps(Switchboard switchboard, Supplier<List<RoaringBitmap>> source,
+                                    List<RoaringBitmap> target, int size) {
+        for (int from = 0; from < target.size(); from += COMPACTION_COPY_BITMAPS) {
+            synchronized (switchboard) {
+                List<RoaringBitmap> lists = source.get();
+                for (int i = from; i < Math.min(from + COMPACTION_COPY_BITMAPS, target.size()); ++i) {
+                    RoaringBitmap copy = lists.get(i).clone();
+                    copy.remove((long) size, 0x100000000L);
+                    target.set(i, copy);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops writing down changes for a compaction that failed, so that the journal doesn't grow forever and a later
+     * compaction can start.
+     */
+    void abandonCompaction() {
+        journal = null;
+    }
+
+    /**
+     * Takes over the state of a compacted copy of the posting list, after replaying the changes that were made to
+     * this one since the copy was taken.
+     * @param compacted the copy made by {@link #compactInBackground}
+     * @param newIds the index in the copy of each item that was in the snapshot, or -1 if it was removed
+     */
+    void finishCompaction(PostingList compacted, int[] newIds) {
+        int[] ids = Arrays.copyOf(newIds, paths.size());
+        Arrays.fill(ids, newIds.length, ids.length, -1);
+        List<BiConsumer<PostingList, int[]>> changes = journal;
+        journal = null;
+        changes.forEach(change -> change.accept(compacted, ids));
+
+        lists = compacted.lists;
+        nameLists = compacted.nameLists;
+        paths = compacted.paths;
+        pathIndex = compacted.pathIndex;
+        extensions = compacted.extensions;
+        sizes = compacted.sizes;
+        timestamps = compacted.timestamps;
+        tree = compacted.tree;
+        numHoles = compacted.numHoles;
+        lastRenumbering = ids;
+        ++numbering;
+    }
+
+    /**
+     * Moves a filter's visible items to the indices of the last compaction.  The hidden items are moved to their new
+     * indices; if the filter is more than one compaction behind, everything is made visible again.
+     * @param filter the filter to update
+     */
+    private void renumberVisibleItems(QueryFilter filter) {
+        if (filter.getNumbering() == numbering) return;
+        RoaringBitmap visible = filter.getVisibleItems();
+        // Only the indices that existed before the compaction can have been hidden on purpose.
+        RoaringBitmap hidden = RoaringBitmap.bitmapOfRange(0, lastRenumbering.length);
+        hidden.andNot(visible);
+        RoaringBitmap renumberedHidden = new RoaringBitmap();
+        if (filter.getNumbering() == numbering - 1) {
+            hidden.forEach((int i) -> {
+                if (lastRenumbering[i] >= 0) renumberedHidden.add(lastRenumbering[i]);
+            });
+        }
+        visible.add(0L, 0x100000000L);
+        visible.andNot(renumberedHidden);
+        filter.setNumbering(numbering);
+    }
+
+    /**
+     * Brings the backend up to date with the filesystem in a background process.  Unlike
+     * {@link #generateFromFilesystem}, this only lists the directories that have changed since the database file was
+     * written (see {@link IndexRefresher}), and it updates this posting list in place through the switchboard, so the
+     * UI can keep querying it in the meantime.
+     */
+    public void refreshFromFilesystem(Switchboard switchboard) {
+        Executors.newSingleThreadExecutor().submit(() -> {
+            IndexRefresher refresher = new IndexRefresher(this, switchboard, new WalkOptions());
+            refresher.refresh();
+
+            System.err.println("Finished Refreshing: " + refresher);
+        });
+    }
+
+    /**
+     * @return whether the posting list has never had anything added to it
+     */
+    public boolean isEmpty() {
+        return paths.size() == 0;
+    }
+
     /**
      * Registers a new file or directory at the given path.
      * @param path the path at which to add the new item
      * @param size the size of the item
      */
     public void add(String path, long size, long timestamp) {
-        addString(path);
+        int index = addString(path.toCharArray(), 0, path.length());
+        sizes.add(size);
+        timestamps.add(timestamp);
+        if (index >= 0 && bulkWriters == null) {
+            tree.add(index, path, size == -1, paths);
+            extensions.add(path, index);
+        }
+        if (index >= 0 && journal != null) {
+            journal.add((compacted, ids) -> {
+                compacted.add(path, size, timestamp);
+                ids[index] = compacted.paths.size() - 1;
+            });
+        }
+    }
+
+    /**
+     * Registers a new file or directory whose path is in a buffer.  This is meant to be used as a {@link FileSink}, so
+     * that building the posting list from a walk doesn't make a string for any path.
+     * @param path a buffer containing the path at which to add the new item
+     * @param offset the index of the first character of the path in the buffer
+     * @param length the number of characters in the path
+     * @param size the size of the item
+     * @param timestamp the last modified time of the item
+     */
+    public void add(char[] path, int offset, int length, long size, long timestamp) {
+        int index = addString(path, offset, length);
         sizes.add(size);
         timestamps.add(timestamp);
+        if (index < 0 || bulkWriters != null) {
+            // A bulk build links the directory tree once it is done (see `generateFromFilesystem`).
+            return;
+        }
+        String str = new String(path, offset, length);
+        tree.add(index, str, size == -1, paths);
+        extensions.add(str, index);
+        if (journal != null) {
+            journal.add((compacted, ids) -> {
+                compacted.add(str, size, timestamp);
+                ids[index] = compacted.paths.size() - 1;
+            });
+        }
     }
 
     /**
-     * Breaks a string into trigrams, adds the string to the list of potential strings, and adds the trigrams
+     * Breaks a string into n-grams, adds the string to the list of potential strings, and adds the n-grams
      * to the posting list.
-     * @param str the string to add to the posting list
+     * @param chars a buffer holding the string to add to the posting list
+     * @param offset the index of the string's first character in chars
+     * @param length the length of the string
+     * @return the index of the string in the haystack, or -1 if it is empty
+     */
+    private int addString(char[] chars, int offset, int length) {
+        if (length == 0) return -1;
+
+        int index = paths.add(chars, offset, length);
+        if (bulkWriters == null) pathIndex.add(PathIndex.hash(chars, offset, length), index);
+
+        int numGrams = collectGrams(chars, offset, length);
+        for (int i = 0; i < numGrams; ++i) {
+            addToList(gramScratch[i], index);
+        }
+        postingMutations += numGrams;
+        if (nameLists != null) addName(chars, offset, length, index);
+        ++pathsIndexed;
+        return index;
+    }
+
+    /**
+     * Adds the n-grams of an item's name (the part of its path after the last separator) to the name lists.
+     * @param chars a buffer holding the path of the item
+     * @param offset the index of the path's first character in chars
+     * @param length the length of the path
+     * @param index the index of the item
      */
-    private void addString(String str) {
-        if (str.isEmpty()) return;
+    private void addName(char[] chars, int offset, int length, int index) {
+        int nameOffset = offset + length;
+        while (nameOffset > offset && chars[nameOffset - 1] != File.separatorChar) --nameOffset;
+        int numGrams = collectGrams(chars, nameOffset, offset + length - nameOffset);
+        for (int i = 0; i < numGrams; ++i) {
+            if (nameBulkWriters != null) {
+                nameBulkWriters.get(gramScratch[i]).add(index);
+            } else {
+                nameLists.get(gramScratch[i]).add(index);
+            }
+        }
+        postingMutations += numGrams;
+    }
 
-        int index = paths.size();
-        paths.add(str);
-        totalPathsSize += str.getBytes().length;
+    /**
+     * Finds the distinct n-grams of a string, so that each n-gram's bitmap is only changed once even if the n-gram
+     * appears many times (e.g. {@code /aaaaaaaa/aaaaaaaa.aaa}).  The n-grams are put in {@link #gramScratch}, in the
+     * order they first appear.
+     * <p>
+     * The trigrams are what most queries are answered with.  The characters and pairs of characters are only there so
+     * that queries shorter than a trigram don't have to look at every path (see {@link #getStrings}).  If the string
+     * is shorter than 3 characters, it has no trigrams.
+     * @param chars a buffer holding the string
+     * @param offset the index of the string's first character in chars
+     * @param length the length of the string
+     * @return the number of distinct n-grams
+     */
+    private int collectGrams(char[] chars, int offset, int length) {
+        if (length == 0) return 0;
+        // A string of n characters has n trigrams (counting the one that marks its start), n characters, and n - 1
+        // pairs of characters.
+        if (gramScratch.length < 3 * length) gramScratch = new int[Math.max(3 * length, gramScratch.length * 2)];
 
-        // If str.length() < 3, we are not able to search for them with trigrams, so we don't add them to the
-        // posting list.
-        if (str.length() >= 3) {
-            int a = 60, b = mapChar(str.charAt(0)), c = mapChar(str.charAt(1));
-            lists.get(mapTrigramToIndex(a, b, c)).add(index);
-            for (int i = 2; i < str.length(); ++i) {
+        int count = 0;
+        int previous = -1;
+        for (int i = 0; i < length; ++i) {
+            int current = mapChar(chars[offset + i]);
+            count = collectGram(UNIGRAM_OFFSET + current, count);
+            if (previous >= 0) count = collectGram(BIGRAM_OFFSET + mapBigramToIndex(previous, current), count);
+            previous = current;
+        }
+        if (length >= 3) {
+            int a = 60, b = mapChar(chars[offset]), c = mapChar(chars[offset + 1]);
+            for (int i = 2; i <= length; ++i) {
+                count = collectGram(mapTrigramToIndex(a, b, c), count);
+                if (i == length) break;
                 a = b;
                 b = c;
-                c = mapChar(str.charAt(i));
-                lists.get(mapTrigramToIndex(a, b, c)).add(index);
+                c = mapChar(chars[offset + i]);
             }
         }
+        // Clear only the bits we set, so that short paths don't pay for clearing the whole set.
+        for (int i = 0; i < count; ++i) {
+            seenGrams[gramScratch[i] >>> 6] = 0;
+        }
+        return count;
+    }
+
+    /**
+     * Adds an n-gram to {@link #gramScratch} unless it is already there.
+     * @param gram the index of the n-gram in the posting list
+     * @param count the number of n-grams collected so far
+     * @return the new number of n-grams
+     */
+    private int collectGram(int gram, int count) {
+        long bit = 1L << gram;
+        if ((seenGrams[gram >>> 6] & bit) != 0) return count;
+        seenGrams[gram >>> 6] |= bit;
+        gramScratch[count] = gram;
+        return count + 1;
+    }
+
+    /**
+     * Gets the average number of bitmap updates it took to add or remove a path.  Without removing duplicate
+     * n-grams first, this would be about three times the average length of a path.
+     * @return the ratio of bitmap updates to paths, or 0 if no path has been added or removed
+     */
+    public double getPostingMutationsPerPath() {
+        return pathsIndexed == 0 ? 0 : (double) postingMutations / pathsIndexed;
+    }
+
+    private void addToList(int gram, int index) {
+        if (bulkWriters != null) {
+            bulkWriters.get(gram).add(index);
+        } else {
+            lists.get(gram).add(index);
+        }
     }
 
     /**
@@ -315,67 +865,168 @@ public final class PostingList {
      * @return -1 if str is not in the list; otherwise, the size of the removed item
      */
     private FileModel removeItem(String path) {
-        int idx = removeString(path);
+        int idx = indexOf(path);
         if (idx < 0) return null;
         long sizeResult = sizes.get(idx);
-        sizes.set(idx, Long.MIN_VALUE);
-        long timestampResult = sizes.get(idx);
-        timestamps.set(idx, Long.MIN_VALUE);
-        // Compact the haystack.
-        if (numHoles > 127) {
-            paths = (ArrayList<String>) paths.parallelStream()
-                                                .filter(String::isEmpty)
-                                                .collect(Collectors.toList());
-            sizes = (ArrayList<Long>) sizes.parallelStream()
-                                              .filter(size -> size > Long.MIN_VALUE)
-                                              .collect(Collectors.toList());
-            timestamps = (ArrayList<Long>) timestamps.parallelStream()
-                                                   .filter(time -> time > Long.MIN_VALUE)
-                                                   .collect(Collectors.toList());
-            lists.parallelStream().forEach(RoaringBitmap::clear);
-            IntStream.range(0, paths.size()).parallel().forEach(i -> {
-                if (paths.get(i).length() >= 3) {
-                    int a, b = mapChar(paths.get(i).charAt(0)), c = mapChar(paths.get(i).charAt(1));
-                    for (int j = 2; j < paths.get(i).length(); ++j) {
-                        a = b;
-                        b = c;
-                        c = mapChar(paths.get(i).charAt(i));
-                        lists.get(mapTrigramToIndex(a, b, c)).add(i);
-                    }
-                }
-            });
-            numHoles = 0;
-        }
+        long timestampResult = timestamps.get(idx);
+        removeAt(idx);
 
         return new FileModel("", sizeResult, timestampResult);
     }
 
     /**
-     * Removes a string from the posting list and haystack if they contain the string.
-     * @param str the string to remove
-     * @return -1 if str is not in the list; otherwise, the index of the removed item
+     * Removes the item with a given index from the posting list and haystack, leaving a hole in its place.
+     * @param index the index of an item that has not been removed yet
      */
-    private int removeString(String str) {
-        if (str.isEmpty()) return -1;
+    void removeAt(int index) {
+        removeString(index);
+        sizes.set(index, Long.MIN_VALUE);
+        timestamps.set(index, Long.MIN_VALUE);
+        if (journal != null) {
+            journal.add((compacted, ids) -> {
+                if (ids[index] >= 0) compacted.removeAt(ids[index]);
+            });
+        }
+    }
 
-        int index = paths.indexOf(str);
-        if (index == -1) return index;
-        paths.set(index, "");
-        totalPathsSize -= str.getBytes().length;
+    /**
+     * Removes a string from the posting list and haystack.
+     * @param index the index of the string to remove
+     */
+    private void removeString(int index) {
+        assert (bulkWriters == null);
+        String str = paths.get(index);
+        paths.remove(index);
+        pathIndex.remove(str.hashCode(), index);
+        tree.remove(index, str);
+        extensions.remove(str, index);
         ++numHoles;
 
-        // If str.length() < 3, it is not in the posting list.
-        if (str.length() >= 3) {
-            int a, b = mapChar(str.charAt(0)), c = mapChar(str.charAt(1));
-            for (int i = 2; i < str.length(); ++i) {
-                a = b;
-                b = c;
-                c = mapChar(str.charAt(i));
-                lists.get(mapTrigramToIndex(a, b, c)).remove(index);
+        char[] chars = str.toCharArray();
+        int numGrams = collectGrams(chars, 0, chars.length);
+        for (int i = 0; i < numGrams; ++i) {
+            lists.get(gramScratch[i]).remove(index);
+        }
+        postingMutations += numGrams;
+        if (nameLists != null) {
+            int nameOffset = str.lastIndexOf(File.separatorChar) + 1;
+            int numNameGrams = collectGrams(chars, nameOffset, chars.length - nameOffset);
+            for (int i = 0; i < numNameGrams; ++i) {
+                nameLists.get(gramScratch[i]).remove(index);
             }
+            postingMutations += numNameGrams;
         }
+        ++pathsIndexed;
+    }
 
-        return index;
+    /**
+     * Finds the item with a given path.
+     * @param path the path of the item
+     * @return the index of the item, or -1 if there is no item with the path
+     */
+    int indexOf(String path) {
+        return pathIndex.find(path, paths);
+    }
+
+    /**
+     * @return the number of slots in the haystack, including holes left by removed items
+     */
+    int numSlots() {
+        return paths.size();
+    }
+
+    /**
+     * @param index the index of an item
+     * @return the path of the item, or "" if it has been removed
+     */
+    String pathAt(int index) {
+        return paths.get(index);
+    }
+
+    /**
+     * @param index the index of an item
+     * @return the size of the item, which is -1 for directories
+     */
+    long sizeAt(int index) {
+        return sizes.get(index);
+    }
+
+    /**
+     * @param index the index of an item
+     * @return the last modified time of the item
+     */
+    long timestampAt(int index) {
+        return timestamps.get(index);
+    }
+
+    /**
+     * Updates the size and last modified time of an item in place.
+     * @param index the index of an item that has not been removed
+     * @param size the new size
+     * @param timestamp the new last modified time
+     */
+    void setAttributes(int index, long size, long timestamp) {
+        sizes.set(index, size);
+        timestamps.set(index, timestamp);
+        if (journal != null) {
+            journal.add((compacted, ids) -> {
+                if (ids[index] >= 0) compacted.setAttributes(ids[index], size, timestamp);
+            });
+        }
+    }
+
+    /**
+     * Finds every item beneath a directory.
+     * @param dirPath the path of the directory, which may be a root
+     * @return the indices of the items whose paths start with `dirPath` followed by a separator
+     */
+    RoaringBitmap getSubtree(String dirPath) {
+        return tree.subtree(dirPath, paths);
+    }
+
+    /**
+     * Calls a function for each item directly beneath a directory.
+     * @param dirPath the path of the directory, which may be a root
+     * @param action the function to call with the index of each item
+     */
+    void forEachChild(String dirPath, IntConsumer action) {
+        tree.forEachChild(dirPath, paths, action);
+    }
+
+    /**
+     * Applies a batch of changes that were observed on the filesystem.
+     * @param removed the paths that no longer exist; the subtrees of removed directories are removed too
+     * @param upserts the current information of paths that exist; they are added if they are new and updated otherwise
+     * @param rewalkedDirs directories whose subtrees are entirely described by `upserts`; anything recorded beneath
+     *                     them that is not in `upserts` is removed
+     */
+    void applyChanges(Collection<String> removed, Collection<FileModel> upserts, Collection<String> rewalkedDirs) {
+        rewalkedDirs.forEach(dir -> getSubtree(dir).forEach((int i) -> removeAt(i)));
+        removed.forEach(path -> {
+            int idx = indexOf(path);
+            if (idx >= 0) removeWithSubtree(idx);
+        });
+        upserts.forEach(item -> {
+            int idx = indexOf(item.path);
+            if (idx >= 0 && (sizes.get(idx) == -1) == (item.size == -1)) {
+                setAttributes(idx, item.size, item.timestamp);
+                return;
+            }
+            // The item is new, or it has been replaced by an item of the other kind.
+            if (idx >= 0) removeWithSubtree(idx);
+            add(item.path, item.size, item.timestamp);
+        });
+    }
+
+    /**
+     * Removes an item, and everything beneath it if it is a directory.
+     * @param index the index of an item that has not been removed yet
+     */
+    private void removeWithSubtree(int index) {
+        if (sizes.get(index) == -1) {
+            getSubtree(paths.get(index)).forEach((int i) -> removeAt(i));
+        }
+        removeAt(index);
     }
 
     /**
@@ -384,35 +1035,33 @@ public final class PostingList {
      * @param destination the path of the directory to move `source` to
      */
     public void moveFile(String source, String destination) {
-        getStrings(source).stream().parallel().filter(i -> paths.get(i).equals(source)).findAny().ifPresent(srcIdx -> {
-            if (srcIdx >= 0) {
-                String destPath = destination + source.substring(source.lastIndexOf(File.separatorChar));
-                FileModel fileInfo = removeItem(source);
-                assert fileInfo != null;
-                add(destPath, fileInfo.size, fileInfo.timestamp);
-            }
-        });
+        FileModel fileInfo = removeItem(source);
+        if (fileInfo != null) {
+            String destPath = destination + source.substring(source.lastIndexOf(File.separatorChar));
+            add(destPath, fileInfo.size, fileInfo.timestamp);
+        }
     }
 
     /**
      * Queries the backend for files.
      * @param filter filters the query results
-     * @return a stream of file paths corresponding to the results of the query
+     * @return the file paths corresponding to the results of the query
      */
-    public Stream<String> get(QueryFilter filter) {
+    public List<String> get(QueryFilter filter) {
+        renumberVisibleItems(filter);
         // Start searching numeric arrays.
-        ForkJoinTask<RoaringBitmap> fileSizeQueryTask = ForkJoinPool.commonPool().submit(() -> IntStream.range(0, sizes.size())
-            .filter(i -> filter.isInFileSizeRange(sizes.get(i)))
-                .collect(RoaringBitmap::new, RoaringBitmap::add, ParallelAggregation::or));
-        ForkJoinTask<RoaringBitmap> dateQueryTask = ForkJoinPool.commonPool().submit(() -> IntStream.range(0, timestamps.size())
-            .filter(i -> filter.isInFileDateRange(timestamps.get(i)))
-                .collect(RoaringBitmap::new, RoaringBitmap::add, ParallelAggregation::or));
-
-        // Search text-related things.
-        String[] splitQuery = filter.getQuery().split("\\s");
+        ForkJoinTask<RoaringBitmap> fileSizeQueryTask = ForkJoinPool.commonPool().submit(() ->
+            sizes.selectRange(filter.getFileSizeLower(), filter.getFileSizeUpper()));
+        ForkJoinTask<RoaringBitmap> dateQueryTask = ForkJoinPool.commonPool().submit(() ->
+            timestamps.selectRange(filter.getFileDateStart(), filter.getFileDateEnd()));
+
+        // Search text-related things.  A blank query is a separator, which no name contains.
+        boolean namesOnly = filter.isNamesOnly();
+        String[] splitQuery = namesOnly && filter.getQuery().equals(File.separator)
+                              ? new String[0] : filter.getQuery().split("\\s");
         ForkJoinTask<RoaringBitmap> searchQueryTask = ForkJoinPool.commonPool().submit(() ->
             Arrays.stream(splitQuery).parallel()
-                    .map(this::getStrings)
+                    .map(part -> getStrings(part, namesOnly))
                     .reduce(RoaringBitmap.bitmapOfRange(0, paths.size()), (acc, item) -> RoaringBitmap.and(acc, item)));
         ForkJoinTask<RoaringBitmap> rootsQueryTask = ForkJoinPool.commonPool().submit(() ->
              filter.getRoots().parallelStream()
@@ -424,19 +1073,16 @@ public final class PostingList {
                            .map(this::getStrings)
                            .reduce(RoaringBitmap.bitmapOfRange(0, paths.size()), ParallelAggregation::or);
         });
-        ForkJoinTask<RoaringBitmap> extensionQueryTask = ForkJoinPool.commonPool().submit(() -> {
-            if (filter.getExtSearchTerms().isEmpty()) return RoaringBitmap.bitmapOfRange(0, 0x100000000L);
-            return filter.getTextSearchTerms().parallelStream()
-                           .map(this::getStrings)
-                           .reduce(RoaringBitmap.bitmapOfRange(0, paths.size()), (acc, item) -> RoaringBitmap.and(acc, item));
-        });
+        RoaringBitmap extensionQuery = filter.getExtSearchTerms().isEmpty()
+                                       ? RoaringBitmap.bitmapOfRange(0, 0x100000000L)
+                                       : extensions.select(filter.getExtSearchTerms(), paths);
 
         // Combine all the bitmaps.
         stage1Cache = new RoaringBitmap(filter.getVisibleItems().toMutableRoaringBitmap());
         stage1Cache.and(searchQueryTask.join());
         stage1Cache.and(rootsQueryTask.join());
         stage1Cache.and(additiveSearchQueryTask.join());
-        stage1Cache.and(extensionQueryTask.join());
+        stage1Cache.and(extensionQuery);
         stage1Cache.and(fileSizeQueryTask.join());
         stage1Cache.and(dateQueryTask.join());
 
@@ -447,33 +1093,39 @@ public final class PostingList {
      * Postprocesses and potentially sorts the paths associated to a bit set.
      * @param filter the parameters for filtering and sorting
      * @param splitQuery the query segments to ensure are included
-     * @return a stream of file paths ready to be given to the UI
+     * @return the file paths, ready to be given to the UI
      */
-    private Stream<String> getPostprocessed(QueryFilter filter, String[] splitQuery) {
+    private List<String> getPostprocessed(QueryFilter filter, String[] splitQuery) {
+        List<byte[]> roots = encodeAll(filter.getRoots());
+        List<byte[]> queryParts = encodeAll(Arrays.asList(splitQuery));
+        List<byte[]> textSearchTerms = encodeAll(filter.getTextSearchTerms());
         IntStream outStream = stage1Cache.stream().parallel()
+                                      .filter(i -> roots.stream().anyMatch(root -> paths.startsWith(i, root)))
+                                      .filter(i -> queryParts.stream().allMatch(part -> filter.isNamesOnly()
+                                                                                        ? paths.nameContains(i, part)
+                                                                                        : paths.contains(i, part)))
                                       .filter(i -> {
-                                          if (filter.getExtSearchTerms().isEmpty()) return true;
-                                          for (String extension : filter.getExtSearchTerms()) {
-                                              if (paths.get(i).endsWith(extension)) return true;
-                                          }
-                                          return false;
-                                      })
-                                      .filter(i -> filter.getRoots().parallelStream().anyMatch(paths.get(i)::startsWith))
-                                      .filter(i -> Arrays.stream(splitQuery).parallel().allMatch(paths.get(i)::contains))
-                                      .filter(i -> {
-                                          if (filter.getTextSearchTerms().isEmpty()) return true;
-                                          return filter.getTextSearchTerms().parallelStream().anyMatch(paths.get(i)::contains);
+                                          if (textSearchTerms.isEmpty()) return true;
+                                          return textSearchTerms.stream().anyMatch(term -> paths.contains(i, term));
                                       });
 
         if (filter.getSortSteps().isEmpty()) {
-            return outStream.mapToObj(paths::get);
+            return outStream.mapToObj(paths::get).collect(Collectors.toList());
         }
         // Sorting
         Comparator<Integer> comparator = filter.getSortSteps().stream()
                                                  .map(this::getComparatorForSortStep)
                                                  .reduce(Comparator::thenComparing).get();
 
-        return outStream.boxed().sorted(comparator).map(paths::get);
+        return outStream.boxed().sorted(comparator).map(paths::get).collect(Collectors.toList());
+    }
+
+    /**
+     * @param strings the strings to encode
+     * @return the strings, encoded to be compared with the paths in the store (see {@link PathStore#encode})
+     */
+    private static List<byte[]> encodeAll(Collection<String> strings) {
+        return strings.stream().map(PathStore::encode).collect(Collectors.toList());
     }
 
     private final Comparator<Integer> nameComparator = (path1, path2) -> getFileName(paths.get(path1)).compareTo(getFileName(paths.get(path2)));
@@ -530,24 +1182,72 @@ public final class PostingList {
         }
     }
 
+    /**
+     * Counts the items with each file extension, without looking at any paths.
+     * @return the number of items with each lower-cased extension, including the dot
+     */
+    public Map<String, Integer> getExtensionCounts() {
+        return extensions.counts();
+    }
+
     /**
      * Retrieves all the strings corresponding to a query string.
      * @param query the string to search for
      * @return a bitset of indexes of strings containing the result of the query
      */
     private RoaringBitmap getStrings(String query) {
-        if (query.length() < 3) {
-            return IntStream.range(0, paths.size())
-                           .filter(i -> paths.get(i).contains(query))
-                           .collect(RoaringBitmap::new, RoaringBitmap::add, ParallelAggregation::or);
+        return getStrings(query, false);
+    }
+
+    /**
+     * Ditto.
+     * @param query the string to search for
+     * @param namesOnly whether to only search the names of the items; if the names aren't indexed, the result also
+     *                  has items whose paths contain the string elsewhere
+     * @return a bitset of indexes of strings containing the result of the query
+     */
+    private RoaringBitmap getStrings(String query, boolean namesOnly) {
+        List<RoaringBitmap> gramLists = namesOnly && nameLists != null ? nameLists : lists;
+        if (query.isEmpty()) {
+            return RoaringBitmap.bitmapOfRange(0, paths.size());
+        } else if (query.length() == 1) {
+            return gramLists.get(UNIGRAM_OFFSET + mapChar(query.charAt(0))).clone();
+        } else if (query.length() == 2) {
+            // Like trigrams, pairs are sorted and ignore case, so the postprocessing weeds out e.g. "ba" for "ab".
+            int bigram = mapBigramToIndex(mapChar(query.charAt(0)), mapChar(query.charAt(1)));
+            return gramLists.get(BIGRAM_OFFSET + bigram).clone();
         } else {
+            int[] trigrams = new int[query.length() - 2];
             int a = mapChar(query.charAt(0)), b = mapChar(query.charAt(1)), c = mapChar(query.charAt(2));
-            RoaringBitmap bitset = lists.get(mapTrigramToIndex(a, b, c));
+            trigrams[0] = mapTrigramToIndex(a, b, c);
             for (int i = 3; i < query.length(); ++i) {
                 a = b;
                 b = c;
                 c = mapChar(query.charAt(i));
-                bitset = RoaringBitmap.and(bitset, lists.get(mapTrigramToIndex(a, b, c)));
+                trigrams[i - 2] = mapTrigramToIndex(a, b, c);
+            }
+            // Repeated trigrams (e.g. in "aaaa") would only intersect a bitmap with itself.
+            Arrays.sort(trigrams);
+            int numTrigrams = 0;
+            for (int i = 0; i < trigrams.length; ++i) {
+                if (i == 0 || trigrams[i] != trigrams[i - 1]) trigrams[numTrigrams++] = trigrams[i];
+            }
+
+            // The result is no bigger than the rarest trigram's bitmap, so we start from it and intersect in place with
+            // the next rarest.  Most queries are down to a handful of items after the first few trigrams.
+            RoaringBitmap[] bitmaps = new RoaringBitmap[numTrigrams];
+            for (int i = 0; i < numTrigrams; ++i) {
+                bitmaps[i] = gramLists.get(trigrams[i]);
+            }
+            Arrays.sort(bitmaps, Comparator.comparingInt(RoaringBitmap::getCardinality));
+            if (bitmaps[0].isEmpty()) return new RoaringBitmap();
+            if (bitmaps.length > 10) {
+                // With this many bitmaps, it pays to find the containers they all have before intersecting any.
+                return FastAggregation.and(aggregationBuffer.get(), bitmaps);
+            }
+            RoaringBitmap bitset = bitmaps[0].clone();
+            for (int i = 1; i < bitmaps.length && !bitset.isEmpty(); ++i) {
+                bitset.and(bitmaps[i]);
             }
             return bitset;
         }
@@ -566,34 +1266,26 @@ public final class PostingList {
     }
 
     /**
-     * Gets a list of all the directories beneath all the roots specified in the filter.
+     * Gets a list of all the directories beneath all the roots specified in the filter.  Each directory comes before
+     * its subdirectories, and the subdirectories of a directory are sorted.
      * @param filter the filter containing root directories
-     * @return the stream of directories
+     * @return the directories
      */
-    public Stream<String> getDirectories(QueryFilter filter) {
-        RoaringBitmap dirs = new RoaringBitmap();
-        for (int i = 0; i < sizes.size(); ++i){
-            if (sizes.get(i) == -1) dirs.add(i);
-        }
-        RoaringBitmap rootPaths = filter.getRoots().parallelStream()
-                                          .map(this::getStrings)
-                                          .reduce(RoaringBitmap.bitmapOf(), ParallelAggregation::or);
-        rootPaths.and(dirs);
-        return rootPaths.stream().parallel()
-                       .mapToObj(paths::get)
-                       .filter(s -> filter.getRoots().stream().anyMatch(s::startsWith));
+    public List<String> getDirectories(QueryFilter filter) {
+        return filter.getRoots().stream()
+                       .flatMap(root -> tree.directoriesBeneath(root, paths).stream())
+                       .collect(Collectors.toList());
     }
 
     /**
      * Gets the paths associated with the query, except for the ones starting with `dirPath`.
      * @param filter the filter with the visible item bit set
      * @param dirPath the path to disallow
-     * @return a stream of file names corresponding to the results of the operation
+     * @return the file names corresponding to the results of the operation
      */
-    public Stream<String> disallowFilesInDirectory(QueryFilter filter, String dirPath) {
-        RoaringBitmap toggleBitset = getStrings(dirPath + UIController.fileSeparator).stream()
-                                             .filter(i -> paths.get(i).startsWith(dirPath + UIController.fileSeparator))
-                                             .collect(RoaringBitmap::new, RoaringBitmap::add, ParallelAggregation::or);
+    public List<String> disallowFilesInDirectory(QueryFilter filter, String dirPath) {
+        renumberVisibleItems(filter);
+        RoaringBitmap toggleBitset = getSubtree(dirPath);
         toggleBitset.flip(0, 0x100000000L);
         filter.getVisibleItems().and(toggleBitset);
         return get(filter);
@@ -603,12 +1295,11 @@ public final class PostingList {
      * Gets the paths associated with the query, toggling the visibility of the ones starting with `dirPath`.
      * @param filter the filter with the visible item bit set
      * @param dirPath the path to toggle
-     * @return a stream of file names corresponding to the results of the operation
+     * @return the file names corresponding to the results of the operation
      */
-    public Stream<String> toggleVisibleFiles(QueryFilter filter, String dirPath) {
-        RoaringBitmap toggleBitset = getStrings(dirPath + UIController.fileSeparator).stream()
-                                             .filter(i -> paths.get(i).startsWith(dirPath + UIController.fileSeparator))
-                                             .collect(RoaringBitmap::new, RoaringBitmap::add, ParallelAggregation::or);
+    public List<String> toggleVisibleFiles(QueryFilter filter, String dirPath) {
+        renumberVisibleItems(filter);
+        RoaringBitmap toggleBitset = getSubtree(dirPath);
         filter.getVisibleItems().xor(toggleBitset);
         return get(filter);
     }
@@ -621,10 +1312,21 @@ public final class PostingList {
     public void addRootToFilter(String topDirectory, QueryFilter filter) {
         // It may seem like this is redundant because of the postprocessing step, but this is necessary for
         // having multiple roots in the directory tree.
-        RoaringBitmap newFiles = getStrings(topDirectory + UIController.fileSeparator).stream().parallel()
-                                         .filter(i -> paths.get(i).startsWith(topDirectory + UIController.fileSeparator))
-                                         .collect(RoaringBitmap::new, RoaringBitmap::add, ParallelAggregation::or);
-        filter.getVisibleItems().or(newFiles);
+        renumberVisibleItems(filter);
+        filter.getVisibleItems().or(getSubtree(topDirectory));
+    }
+
+    /**
+     * Maps the two mapped characters of a pair to its index among the pairs.  Like trigrams, the characters are sorted
+     * first, so there is a pair for each of the 64 * 65 / 2 combinations.
+     * @param a the first mapped character to map
+     * @param b the second mapped character to map
+     * @return the index of the pair, to be added to {@link #BIGRAM_OFFSET}
+     */
+    private static int mapBigramToIndex(int a, int b) {
+        int low = Math.min(a, b), high = Math.max(a, b);
+        // Each smaller first character leaves room for 64 - k pairs before it.
+        return low * 64 - low * (low - 1) / 2 + (high - low);
     }
 
     /**
@@ -15,11 +15,14 @@ public final class QueryFilter {
     private final RoaringBitmap visibleItems = RoaringBitmap.bitmapOfRange(0, 0x100000000L);
     private final ArrayList<String> roots = new ArrayList<>();
     private String query = UIController.fileSeparator;
+    private boolean namesOnly = false;
     private long fileSizeLower, fileSizeUpper = Long.MAX_VALUE;
     private long dateTimeStart, dateTimeEnd = Long.MAX_VALUE;
     private final ArrayList<String> textSearchTerms = new ArrayList<>();
     private final ArrayList<String> extSearchTerms = new ArrayList<>();
     private final ArrayList<SortStep> sortSteps = new ArrayList<>();
+    // Which of the posting list's compactions the indices in `visibleItems` belong to.
+    private int numbering = 0;
 
     /**
      * @return the bit set of visible files
@@ -28,6 +31,20 @@ public final class QueryFilter {
         return visibleItems;
     }
 
+    /**
+     * @return the number of compactions of the posting list that the visible items are up to date with
+     */
+    int getNumbering() {
+        return numbering;
+    }
+
+    /**
+     * @param numbering the number of compactions of the posting list that the visible items are now up to date with
+     */
+    void setNumbering(int numbering) {
+        this.numbering = numbering;
+    }
+
     /**
      * Gets the string query that was in the search box.
      * @return the query
@@ -44,6 +61,22 @@ public final class QueryFilter {
         this.query = query.trim().isEmpty() ? UIController.fileSeparator : query;
     }
 
+    /**
+     * @return whether the query is only matched against the names of the items, instead of their whole paths
+     */
+    public boolean isNamesOnly() {
+        return namesOnly;
+    }
+
+    /**
+     * Sets whether the query is only matched against the names of the items (the part of their paths after the last
+     * separator).  A name search for {@code src} doesn't match everything beneath a directory called {@code src}.
+     * @param namesOnly whether to only search the names
+     */
+    public void setNamesOnly(boolean namesOnly) {
+        this.namesOnly = namesOnly;
+    }
+
     /**
      * @return the list of root directories
      */
@@ -151,6 +184,20 @@ public final class QueryFilter {
     public boolean isInFileSizeRange(long fileSize) {
         return fileSize >= fileSizeLower && fileSize <= fileSizeUpper;
     }
+
+    /**
+     * @return the smallest file size allowed by the filter, which is never negative
+     */
+    long getFileSizeLower() {
+        return fileSizeLower;
+    }
+
+    /**
+     * @return the largest file size allowed by the filter
+     */
+    long getFileSizeUpper() {
+        return fileSizeUpper;
+    }
     
     /**
      * Shrinks the date range allowed by the filter.
@@ -179,4 +226,18 @@ public final class QueryFilter {
     public boolean isInFileDateRange(long fileDate) {
         return fileDate >= dateTimeStart && fileDate <= dateTimeEnd;
     }
+
+    /**
+     * @return the earliest file date allowed by the filter, which is never negative
+     */
+    long getFileDateStart() {
+        return dateTimeStart;
+    }
+
+    /**
+     * @return the latest file date allowed by the filter
+     */
+    long getFileDateEnd() {
+        return dateTimeEnd;
+    }
 }
\ No newline at end of file
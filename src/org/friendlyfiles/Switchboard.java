@@ -7,22 +7,29 @@ import org.friendlyfiles.ui.UIController;
 import java.io.IOException;
 import java.nio.file.*;
 import java.text.*;
+import java.util.*;
+import java.util.function.Consumer;
 import java.util.regex.*;
-import java.util.stream.Stream;
 
 /**
  * Handles all coordination between the UI, backend, and file system.  This includes passing error messages for the
- * user to the controller and swapping the backend when it finishes indexing the filesystem.
+ * user to the controller, swapping the backend when it finishes indexing the filesystem, and applying the changes that
+ * {@link IndexWatcher} sees beneath the search roots.
  * <p>
  * Because the backend swap involves a number of threads, the process is a little convoluted:
  * <ol>
  * <li> {@link UIController#initialize} creates a PostingList and constructs a new Switchboard. </li>
- * <li> {@link Switchboard#Switchboard} calls {@link PostingList#generateFromFilesystem} to start the indexing. </li>
+ * <li> {@link Switchboard#Switchboard} calls {@link PostingList#generateFromFilesystem} to start the indexing.  (If the
+ *      PostingList was read from a file, it calls {@link PostingList#refreshFromFilesystem} instead, which updates it
+ *      in place through {@link Switchboard#applyIndexChanges}, and there is no swap.) </li>
+ * <li> Until the new backend arrives, every change made to the old one is also written down, since the background
+ *      task may have listed the affected directories before the change happened. </li>
  * <li> {@link PostingList#generateFromFilesystem} starts a new background thread for indexing. </li>
  * <li> When the background task is done indexing, it calls {@link Switchboard#swapInBackend} with the newly
  *      constructed PostingList. </li>
  * <li> {@link Switchboard#swapInBackend} calls {@link UIController#notifyBackendSwapCompleted} to tell the
  *      controller to close the waiting dialog box if it is open. </li>
+ * <li> {@link Switchboard#swapInBackend} replays the changes that were written down onto the new backend. </li>
  * </ol>
  */
 public class Switchboard {
@@ -30,22 +37,38 @@ public class Switchboard {
     private final UIController controller;
     private PostingList backend;
     private final FileSource fileSource;
+    private IndexWatcher watcher;
+    // The changes made to the backend while a new one is being built, or null when no new one is being built.
+    private List<Consumer<PostingList>> pendingChanges = null;
 
     /**
-     * Creates a switchboard and starts the background process that re-indexes the file system.
+     * Creates a switchboard and starts the background process that re-indexes the file system.  A backend that was
+     * read from a database file is only refreshed; an empty one is built from scratch.
      */
     public Switchboard(UIController controller, PostingList backend, FileSource fileSource) {
         this.controller = controller;
         this.backend = backend;
         this.fileSource = fileSource;
         this.fileSource.setSwitchboard(this);
-        backend.generateFromFilesystem(this);
+        try {
+            this.watcher = new IndexWatcher(this);
+        } catch (IOException e) {
+            // Without a watcher, outside changes only show up after the next crawl.
+            this.watcher = null;
+        }
+        if (backend.isEmpty()) {
+            pendingChanges = new ArrayList<>();
+            backend.generateFromFilesystem(this);
+        } else {
+            backend.refreshFromFilesystem(this);
+        }
     }
 
     /**
      * Shuts down the backend.
      */
     public void shutDown() {
+        if (watcher != null) watcher.close();
         try {
             backend.close();
         } catch (Exception e) {
@@ -60,25 +83,67 @@ public class Switchboard {
      * @param backend the new backend to swap in
      */
     public synchronized void swapInBackend(PostingList backend) {
+        // Replaying a change that the new backend already reflects does nothing, since every change is a removal or
+        // an update of an item by its path.
+        if (pendingChanges != null) pendingChanges.forEach(change -> change.accept(backend));
+        pendingChanges = null;
         this.backend = backend;
         Platform.runLater(controller::notifyBackendSwapCompleted);
+        compactIfNeeded();
+    }
+
+    /**
+     * Hands a compacted copy of a backend back to it, unless the backend has been swapped out in the meantime.
+     * @see PostingList#compactInBackground
+     * @param backend the backend that was compacted
+     * @param compacted the compacted copy
+     * @param newIds the index in the copy of each item of the backend
+     */
+    synchronized void finishCompaction(PostingList backend, PostingList compacted, int[] newIds) {
+        if (backend == this.backend) backend.finishCompaction(compacted, newIds);
+    }
+
+    /**
+     * Tells a backend that its compaction failed, so that it stops writing down changes for it.
+     * @see PostingList#compactInBackground
+     * @param backend the backend whose compaction failed
+     */
+    synchronized void abandonCompaction(PostingList backend) {
+        backend.abandonCompaction();
+    }
+
+    /**
+     * Makes a change to the backend, and writes it down if a new backend is being built.
+     * @param change the change to make
+     */
+    private void applyToBackend(Consumer<PostingList> change) {
+        change.accept(backend);
+        if (pendingChanges != null) pendingChanges.add(change);
     }
 
     /**
-     * Queries the backend with only a filter.
+     * Starts compacting the backend in the background if enough items have been removed from it.
+     */
+    private void compactIfNeeded() {
+        if (backend.needsCompaction()) backend.compactInBackground(this);
+    }
+
+    /**
+     * Queries the backend with only a filter.  The results are collected before the lock is released, since the
+     * watcher may change the backend as soon as it is.
      * @param filter the query filter
      * @return the results of the query
      */
-    public synchronized Stream<String> search(QueryFilter filter) {
+    public synchronized List<String> search(QueryFilter filter) {
         return backend.get(filter);
     }
 
     /**
      * Gets a list of all the directories beneath all the roots specified in the filter.
      * @param filter the filter containing root directories
-     * @return the stream of directories
+     * @return the directories
      */
-    public synchronized Stream<String> getDirectories(QueryFilter filter) {
+    public synchronized List<String> getDirectories(QueryFilter filter) {
         return backend.getDirectories(filter);
     }
 
@@ -86,9 +151,9 @@ public class Switchboard {
      * Gets the paths associated with the query, except for the ones starting with `dirPath`.
      * @param filter the filter with the visible item bit set
      * @param dirPath the path to disallow
-     * @return a stream of file names corresponding to the results of the operation
+     * @return the file names corresponding to the results of the operation
      */
-    public synchronized Stream<String> disallowFilesInDirectory(QueryFilter filter, String dirPath) {
+    public synchronized List<String> disallowFilesInDirectory(QueryFilter filter, String dirPath) {
         return backend.disallowFilesInDirectory(filter, dirPath);
     }
 
@@ -96,9 +161,9 @@ public class Switchboard {
      * Gets the paths associated with the query, toggling the visibility of the ones starting with `dirPath`.
      * @param filter the filter with the visible item bit set
      * @param dirPath the path to toggle
-     * @return a stream of file names corresponding to the results of the operation
+     * @return the file names corresponding to the results of the operation
      */
-    public synchronized Stream<String> toggleVisibleFiles(QueryFilter filter, String dirPath) {
+    public synchronized List<String> toggleVisibleFiles(QueryFilter filter, String dirPath) {
         return backend.toggleVisibleFiles(filter, dirPath);
     }
 
@@ -115,9 +180,44 @@ public class Switchboard {
             return true;
         }
         backend.addRootToFilter(topDirectory, filter);
+        if (watcher != null) watcher.watch(Paths.get(topDirectory));
         return false;
     }
 
+    /**
+     * Applies changes that were made to the filesystem outside of the application to the backend, and tells the
+     * controller to refresh its view.
+     * @see PostingList#applyChanges
+     * @param removed the paths that no longer exist
+     * @param upserts the current information of paths that exist
+     * @param rewalkedDirs directories whose subtrees are entirely described by `upserts`
+     */
+    synchronized void applyIndexChanges(Collection<String> removed, Collection<FileModel> upserts, Collection<String> rewalkedDirs) {
+        if (removed.isEmpty() && upserts.isEmpty() && rewalkedDirs.isEmpty()) return;
+        // The watcher may reuse its collections, so the journal keeps copies.
+        List<String> removedCopy = new ArrayList<>(removed);
+        List<FileModel> upsertsCopy = new ArrayList<>(upserts);
+        List<String> rewalkedDirsCopy = new ArrayList<>(rewalkedDirs);
+        applyToBackend(b -> b.applyChanges(removedCopy, upsertsCopy, rewalkedDirsCopy));
+        compactIfNeeded();
+        Platform.runLater(controller::notifyBackendChanged);
+    }
+
+    /**
+     * Brings some subtrees of the backend up to date with the filesystem by their directory timestamps, for
+     * directories that {@link IndexWatcher} can't watch.  This takes the lock only while reading and changing the
+     * backend.
+     * @see IndexRefresher
+     * @param dirs the directories to check along with everything beneath them
+     */
+    void refreshSubtrees(Collection<Path> dirs) {
+        PostingList current;
+        synchronized (this) {
+            current = backend;
+        }
+        new IndexRefresher(current, this, new WalkOptions(), dirs).refresh();
+    }
+
     /**
      * Opens the file using the system's default program for the file's type.
      * @param filePath the path of the file to open
@@ -134,15 +234,16 @@ public class Switchboard {
         selectedItems.forEach(item -> {
             try {
                 fileSource.remove(Paths.get(item));
-                backend.remove(item);
+                applyToBackend(b -> b.remove(item));
             } catch (NoSuchFileException e) {
                 controller.showErrorDialog(String.format("File `%s` does not exist.\n\nWe will remove it from the file view.", item));
-                backend.remove(item);
+                applyToBackend(b -> b.remove(item));
             } catch (IOException e) {
                 controller.showErrorDialog(String.format("We were unable to delete file `%s` for unknown reasons.\n\n"
                         + "Do you have permission to delete this file?", item));
             }
         });
+        compactIfNeeded();
     }
 
     /**
@@ -171,15 +272,16 @@ public class Switchboard {
                     finalName = newName;
                 }
                 fileSource.renameFile(itemPath, finalName);
-                backend.renameFile(item, finalName);
+                applyToBackend(b -> b.renameFile(item, finalName));
             } catch (NoSuchFileException e) {
                 controller.showErrorDialog(String.format("File `%s` does not exist.\n\nWe will remove it from the file view.", item));
-                backend.remove(item);
+                applyToBackend(b -> b.remove(item));
             } catch (IOException e) {
                 controller.showErrorDialog(String.format("We were unable to rename file `%s` for unknown reasons.\n\n"
                                                                  + "Do you have permission to rename this file?", item));
             }
         });
+        compactIfNeeded();
     }
 
     /**
@@ -194,15 +296,16 @@ public class Switchboard {
                 String itemName = itemPath.getFileName().toString();
                 Path destPath = Paths.get(destinationPath, itemName);
                 fileSource.moveFile(itemPath, destPath);
-                backend.moveFile(item, destinationPath);
+                applyToBackend(b -> b.moveFile(item, destinationPath));
             } catch (NoSuchFileException e) {
                 controller.showErrorDialog(String.format("File `%s` does not exist.\n\nWe will remove it from the file view.", item));
-                backend.remove(item);
+                applyToBackend(b -> b.remove(item));
             } catch (IOException e) {
                 controller.showErrorDialog(String.format("We were unable to move file `%s` for unknown reasons.\n\n"
                                                                  + "Do you have permission to move this file?", item));
             }
         });
+        compactIfNeeded();
     }
 
     /**
@@ -0,0 +1,125 @@
+package org.friendlyfiles;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+
+/**
+ * Walks a file tree by giving every directory its own thread.  This is the {@link WalkOptions.Backend#VIRTUAL_THREADS}
+ * crawler backend.
+ * <p>
+ * Crawling a network filesystem spends almost all its time waiting for the server, not using the CPU.  A thread per
+ * directory keeps many directory listings and stats in flight at once, so the latency of each one overlaps with the
+ * others.  The number of directories being listed at the same time is capped by
+ * {@link WalkOptions#getMaxConcurrentDirectories()} overall and by the {@link DeviceBudget} of each device; the rest
+ * wait in a queue per device without a thread.  Because the waiting directories don't hold on to anything, a slow
+ * device can't use up the permits that the other devices need.
+ * <p>
+ * On Java 21 and later the threads are virtual threads, which are cheap enough to start by the hundreds.  Older
+ * runtimes do not have them, so we fall back to a pool of ordinary daemon threads.
+ */
+final class ThreadPerDirectoryWalker {
+    private final DirectoryLister lister;
+    private final FileBatchQueue result;
+    private final ExecutorService threads = newThreadPerTaskExecutor();
+    private final Semaphore permits;
+    private final ConcurrentHashMap<Object, DeviceQueue> devices = new ConcurrentHashMap<>();
+
+    /**
+     * The directories waiting to be listed on one device.
+     */
+    private static final class DeviceQueue {
+        final Semaphore permits;
+        final ConcurrentLinkedQueue<DirectoryLister.Directory> pending = new ConcurrentLinkedQueue<>();
+
+        DeviceQueue(Semaphore permits) {
+            this.permits = permits;
+        }
+
+        boolean isStartable() {
+            return !pending.isEmpty() && permits.availablePermits() > 0;
+        }
+    }
+
+    /**
+     * @param lister the lister that passes each directory's contents to the queue
+     * @param result the queue that tracks the outstanding directories
+     */
+    ThreadPerDirectoryWalker(DirectoryLister lister, FileBatchQueue result) {
+        this.lister = lister;
+        this.result = result;
+        this.permits = new Semaphore(lister.getOptions().getMaxConcurrentDirectories());
+    }
+
+    /**
+     * Starts walking a directory in the background.  The queue is told when the last directory is done.
+     * @param dir the directory to walk
+     */
+    void submit(DirectoryLister.Directory dir) {
+        result.taskStarted();
+        devices.computeIfAbsent(dir.device, device -> new DeviceQueue(lister.getDeviceBudget().permitsFor(device)))
+               .pending.offer(dir);
+        startThreads();
+    }
+
+    /**
+     * Lets the threads end once the walk is over.
+     */
+    void shutDown() {
+        threads.shutdown();
+    }
+
+    /**
+     * Starts a thread for each waiting directory, as long as there are permits left for it.
+     */
+    private void startThreads() {
+        do {
+            for (DeviceQueue device : devices.values()) {
+                while (!device.pending.isEmpty() && permits.tryAcquire()) {
+                    if (!device.permits.tryAcquire()) {
+                        permits.release();
+                        break;
+                    }
+                    DirectoryLister.Directory dir = device.pending.poll();
+                    if (dir == null) {
+                        // Another thread took the last directory between our check and our poll.
+                        device.permits.release();
+                        permits.release();
+                        continue;
+                    }
+                    threads.execute(() -> visit(device, dir));
+                }
+            }
+            // While we held a permit for a moment, another thread may have found it missing and given up, so we have
+            // to look again after letting go of it.
+        } while (permits.availablePermits() > 0 && devices.values().stream().anyMatch(DeviceQueue::isStartable));
+    }
+
+    private void visit(DeviceQueue device, DirectoryLister.Directory dir) {
+        try {
+            lister.list(dir).forEach(this::submit);
+        } finally {
+            result.taskFinished();
+            device.permits.release();
+            permits.release();
+            // The permits we just released may be the ones a waiting directory needs.
+            startThreads();
+        }
+    }
+
+    /**
+     * Makes an executor that starts a virtual thread per task if the runtime supports them.
+     * @return the executor
+     */
+    private static ExecutorService newThreadPerTaskExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException ignored) {
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = Executors.defaultThreadFactory().newThread(runnable);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package org.friendlyfiles;
+
+import java.io.File;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Holds the tunable parameters of a {@link ParallelFileTreeVisitor} walk.
+ * <p>
+ * The defaults can be overridden without recompiling by passing system properties to the JVM:
+ * <ul>
+ * <li> {@code friendlyfiles.walk.queueDepth}: the number of full batches that may wait for the consumer </li>
+ * <li> {@code friendlyfiles.walk.batchSize}: the number of files in each batch </li>
+ * <li> {@code friendlyfiles.walk.splitThreshold}: how much queued work a walker thread may have before it stops
+ *      splitting off subdirectories </li>
+ * <li> {@code friendlyfiles.walk.backend}: {@code FORK_JOIN} or {@code VIRTUAL_THREADS} (see {@link Backend}) </li>
+ * <li> {@code friendlyfiles.walk.maxConcurrentDirectories}: the number of directories the {@code VIRTUAL_THREADS}
+ *      backend lists at the same time </li>
+ * <li> {@code friendlyfiles.walk.crossFilesystems}: whether to descend into directories on other filesystems </li>
+ * <li> {@code friendlyfiles.walk.deviceConcurrency}: the number of directories listed at the same time on each
+ *      device (see {@link DeviceBudget}) </li>
+ * <li> {@code friendlyfiles.walk.rotationalDeviceConcurrency}: the same, but for spinning disks </li>
+ * <li> {@code friendlyfiles.walk.indexShards}: the number of threads that build the index during a crawl </li>
+ * <li> {@code friendlyfiles.walk.roots}: the directories to index </li>
+ * <li> {@code friendlyfiles.walk.excludePrefixes}: directories whose subtrees are never indexed </li>
+ * <li> {@code friendlyfiles.walk.excludeGlobs}: glob patterns of directories whose subtrees are never indexed (see
+ *      {@link #addExcludedGlob}) </li>
+ * </ul>
+ * The last three take lists separated by the platform's path separator (e.g. {@code /home:/mnt/data}).
+ */
+public final class WalkOptions {
+    /**
+     * The ways of dividing a walk among threads.
+     */
+    public enum Backend {
+        /**
+         * A fork/join pool with one thread per core.  This is the fastest choice for local disks, where the walk is
+         * limited by the CPU.
+         */
+        FORK_JOIN,
+        /**
+         * One (virtual, if available) thread per directory.  This is the fastest choice for network filesystems,
+         * where the walk is limited by latency.
+         */
+        VIRTUAL_THREADS
+    }
+
+    private int queueDepth = Integer.getInteger("friendlyfiles.walk.queueDepth", 64);
+    private int batchSize = Integer.getInteger("friendlyfiles.walk.batchSize", 1024);
+    private int splitThreshold = Integer.getInteger("friendlyfiles.walk.splitThreshold", 3);
+    private Backend backend = Backend.valueOf(System.getProperty("friendlyfiles.walk.backend", Backend.FORK_JOIN.name()));
+    private int maxConcurrentDirectories = Integer.getInteger("friendlyfiles.walk.maxConcurrentDirectories", 256);
+    private boolean crossFilesystems = Boolean.parseBoolean(System.getProperty("friendlyfiles.walk.crossFilesystems", "true"));
+    private int deviceConcurrency = Integer.getInteger("friendlyfiles.walk.deviceConcurrency", 64);
+    private int rotationalDeviceConcurrency = Integer.getInteger("friendlyfiles.walk.rotationalDeviceConcurrency", 2);
+    private int indexShards = Integer.getInteger("friendlyfiles.walk.indexShards",
+                                                 Math.max(1, Math.min(8, Runtime.getRuntime().availableProcessors() / 2)));
+    private final ArrayList<Path> roots = new ArrayList<>();
+    private final ArrayList<Path> excludedPrefixes = new ArrayList<>();
+    private final ArrayList<PathMatcher> excludedPathGlobs = new ArrayList<>();
+    private final ArrayList<PathMatcher> excludedNameGlobs = new ArrayList<>();
+
+    /**
+     * Creates a set of options from the system properties, falling back to the defaults for the ones that are not set.
+     * By default, the root of the drive containing the working directory is indexed, and on Linux the virtual
+     * filesystems {@code /proc}, {@code /sys}, and {@code /dev} are excluded.
+     */
+    public WalkOptions() {
+        String rootList = System.getProperty("friendlyfiles.walk.roots");
+        if (rootList == null) {
+            roots.add(Paths.get(System.getProperty("user.dir")).getRoot());
+        } else {
+            splitList(rootList).forEach(root -> roots.add(Paths.get(root)));
+        }
+
+        String prefixList = System.getProperty("friendlyfiles.walk.excludePrefixes");
+        if (prefixList == null) {
+            // We don't want to index the running processes or devices because they are volatile and not useful to
+            // the user.
+            if (System.getProperty("os.name").equals("Linux")) {
+                Arrays.asList("/proc", "/sys", "/dev").forEach(this::addExcludedPrefix);
+            }
+        } else {
+            splitList(prefixList).forEach(this::addExcludedPrefix);
+        }
+
+        String globList = System.getProperty("friendlyfiles.walk.excludeGlobs");
+        if (globList != null) {
+            splitList(globList).forEach(this::addExcludedGlob);
+        }
+    }
+
+    /**
+     * @return the number of full batches that may be queued before the walker threads block
+     */
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * Sets how many full batches may be queued before the walker threads block.  Together with the batch size, this
+     * caps the number of files held in memory by the walk, no matter how large the file tree is.
+     * @param queueDepth the number of batches; must be at least 1
+     */
+    public void setQueueDepth(int queueDepth) {
+        assert (queueDepth >= 1);
+        this.queueDepth = queueDepth;
+    }
+
+    /**
+     * @return the number of files in each batch
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets the number of files that are handed from the walker threads to the consumer at a time.
+     * @param batchSize the number of files; must be at least 1
+     */
+    public void setBatchSize(int batchSize) {
+        assert (batchSize >= 1);
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @return the number of surplus queued tasks above which a walker thread stops splitting off subdirectories
+     */
+    public int getSplitThreshold() {
+        return splitThreshold;
+    }
+
+    /**
+     * Sets how much queued work a walker thread may have before it walks subdirectories itself instead of making
+     * them available to other threads.  Lower values make fewer, larger tasks; higher values balance the work more
+     * evenly at the cost of more scheduling overhead.
+     * @param splitThreshold the number of surplus queued tasks; must be at least 0
+     */
+    public void setSplitThreshold(int splitThreshold) {
+        assert (splitThreshold >= 0);
+        this.splitThreshold = splitThreshold;
+    }
+
+    /**
+     * @return the way the walk is divided among threads
+     */
+    public Backend getBackend() {
+        return backend;
+    }
+
+    /**
+     * Chooses the way the walk is divided among threads.
+     * @param backend the crawler backend to use
+     */
+    public void setBackend(Backend backend) {
+        this.backend = backend;
+    }
+
+    /**
+     * @return the number of directories the {@link Backend#VIRTUAL_THREADS} backend lists at the same time
+     */
+    public int getMaxConcurrentDirectories() {
+        return maxConcurrentDirectories;
+    }
+
+    /**
+     * Sets how many directories the {@link Backend#VIRTUAL_THREADS} backend lists at the same time.  On high-latency
+     * mounts, this is roughly the number of file system requests kept in flight.
+     * @param maxConcurrentDirectories the number of directories; must be at least 1
+     */
+    public void setMaxConcurrentDirectories(int maxConcurrentDirectories) {
+        assert (maxConcurrentDirectories >= 1);
+        this.maxConcurrentDirectories = maxConcurrentDirectories;
+    }
+
+    /**
+     * @return whether the walk descends into directories that are on a different filesystem than their root
+     */
+    public boolean getCrossFilesystems() {
+        return crossFilesystems;
+    }
+
+    /**
+     * Chooses whether the walk descends into mount points, like {@code find} does without {@code -xdev}.  When it
+     * doesn't, a mount point is still indexed, but nothing beneath it is.
+     * @param crossFilesystems whether to descend into directories on other filesystems
+     */
+    public void setCrossFilesystems(boolean crossFilesystems) {
+        this.crossFilesystems = crossFilesystems;
+    }
+
+    /**
+     * @return the number of directories listed at the same time on a device that isn't a spinning disk
+     */
+    public int getDeviceConcurrency() {
+        return deviceConcurrency;
+    }
+
+    /**
+     * Sets how many directories may be listed at the same time on a single device that isn't a spinning disk.  This
+     * includes solid-state drives, network mounts, and devices whose kind can't be determined.
+     * @param deviceConcurrency the number of directories; must be at least 1
+     */
+    public void setDeviceConcurrency(int deviceConcurrency) {
+        assert (deviceConcurrency >= 1);
+        this.deviceConcurrency = deviceConcurrency;
+    }
+
+    /**
+     * @return the number of directories listed at the same time on a spinning disk
+     */
+    public int getRotationalDeviceConcurrency() {
+        return rotationalDeviceConcurrency;
+    }
+
+    /**
+     * Sets how many directories may be listed at the same time on a single spinning disk.  Every concurrent listing
+     * makes the disk seek between them, so a spinning disk is fastest with only one or two.
+     * @param rotationalDeviceConcurrency the number of directories; must be at least 1
+     */
+    public void setRotationalDeviceConcurrency(int rotationalDeviceConcurrency) {
+        assert (rotationalDeviceConcurrency >= 1);
+        this.rotationalDeviceConcurrency = rotationalDeviceConcurrency;
+    }
+
+    /**
+     * @return the number of partial indexes that are built at the same time during a crawl
+     */
+    public int getIndexShards() {
+        return indexShards;
+    }
+
+    /**
+     * Sets how many threads build the index during a crawl.  Each one fills a partial index of its own, and the
+     * partial indexes are merged once the walk is over.  Every shard is a full set of empty posting lists to begin
+     * with, so more shards cost more memory while the crawl runs.
+     * @param indexShards the number of shards; must be at least 1
+     */
+    public void setIndexShards(int indexShards) {
+        assert (indexShards >= 1);
+        this.indexShards = indexShards;
+    }
+
+    /**
+     * @return the directories to index
+     */
+    public List<Path> getRoots() {
+        return roots;
+    }
+
+    /**
+     * Replaces the directories to index.  The roots themselves are not indexed, only their contents.
+     * @param roots the new roots
+     */
+    public void setRoots(Collection<Path> roots) {
+        this.roots.clear();
+        this.roots.addAll(roots);
+    }
+
+    /**
+     * Excludes a directory and everything beneath it from the walk.
+     * @param prefix the path of the directory
+     */
+    public void addExcludedPrefix(String prefix) {
+        excludedPrefixes.add(Paths.get(prefix));
+    }
+
+    /**
+     * Excludes every directory matching a glob pattern, and everything beneath them, from the walk.  Patterns without
+     * a separator are matched against the name of the directory (e.g. {@code node_modules} or {@code .git}); the rest
+     * are matched against the whole path (e.g. {@code /var/lib/docker/overlay*}).
+     * @see FileSystem#getPathMatcher
+     * @param glob the pattern, without the {@code glob:} prefix
+     */
+    public void addExcludedGlob(String glob) {
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        if (glob.contains("/") || glob.contains(File.separator)) {
+            excludedPathGlobs.add(matcher);
+        } else {
+            excludedNameGlobs.add(matcher);
+        }
+    }
+
+    /**
+     * Checks a directory against the exclusion rules.  This is called for every directory before it is walked, so an
+     * excluded directory's subtree is never listed at all.
+     * @param dir the directory to check
+     * @return whether the directory should be left out of the walk
+     */
+    public boolean isExcluded(Path dir) {
+        for (Path prefix : excludedPrefixes) {
+            if (dir.startsWith(prefix)) return true;
+        }
+        for (PathMatcher glob : excludedPathGlobs) {
+            if (glob.matches(dir)) return true;
+        }
+        Path name = dir.getFileName();
+        if (name != null) {
+            for (PathMatcher glob : excludedNameGlobs) {
+                if (glob.matches(name)) return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<String> splitList(String list) {
+        ArrayList<String> items = new ArrayList<>();
+        for (String item : list.split(File.pathSeparator)) {
+            if (!item.trim().isEmpty()) items.add(item.trim());
+        }
+        return items;
+    }
+}
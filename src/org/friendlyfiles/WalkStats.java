@@ -0,0 +1,89 @@
+package org.friendlyfiles;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measurements taken during a {@link ParallelFileTreeVisitor} walk.
+ */
+public final class WalkStats {
+    private final LongAdder entries = new LongAdder();
+    private long elapsedNanos;
+    private final LongAdder consumerWaitNanos = new LongAdder();
+    private final LongAdder statCalls = new LongAdder();
+    private final LongAdder directoryReads = new LongAdder();
+
+    /**
+     * @return the number of files and directories that were passed to {@link ParallelFileTreeVisitor#op}
+     */
+    public long getEntries() {
+        return entries.sum();
+    }
+
+    /**
+     * @return the wall-clock duration of the walk in nanoseconds
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * Gets the time the consumers spent with nothing to do because the walker threads had not finished yet.  A large
+     * value relative to {@link #getElapsedNanos()} means that the walk was held up by a few slow directories.  If
+     * there were several consumers, their times are added up.
+     * @return the time in nanoseconds
+     */
+    public long getConsumerWaitNanos() {
+        return consumerWaitNanos.sum();
+    }
+
+    /**
+     * @return the number of times the walker threads read the attributes of a file or directory
+     */
+    public long getStatCalls() {
+        return statCalls.sum();
+    }
+
+    /**
+     * @return the number of directories the walker threads opened for listing
+     */
+    public long getDirectoryReads() {
+        return directoryReads.sum();
+    }
+
+    /**
+     * Gets the average number of file system calls (attribute reads and directory listings) needed for each entry
+     * passed to {@link ParallelFileTreeVisitor#op}.  A walk that stats every entry exactly once gives a little more
+     * than 1, depending on how many entries are directories.
+     * @return the ratio of calls to entries, or 0 if there were no entries
+     */
+    public double getSyscallsPerEntry() {
+        long entries = getEntries();
+        return entries == 0 ? 0 : (double) (getStatCalls() + getDirectoryReads()) / entries;
+    }
+
+    void addEntries(long count) {
+        entries.add(count);
+    }
+
+    void setElapsedNanos(long elapsedNanos) {
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    void addConsumerWaitNanos(long nanos) {
+        consumerWaitNanos.add(nanos);
+    }
+
+    void addStatCalls(long count) {
+        statCalls.add(count);
+    }
+
+    void addDirectoryReads(long count) {
+        directoryReads.add(count);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d entries in %d ms (%d ms waiting on walker threads, %.3f syscalls per entry)",
+                getEntries(), elapsedNanos / 1_000_000, getConsumerWaitNanos() / 1_000_000, getSyscallsPerEntry());
+    }
+}
@@ -19,7 +19,6 @@ import java.io.*;
 import java.nio.file.*;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.stream.*;
 
 /**
  * Handles everything associated with the UI.
@@ -296,8 +295,8 @@ public class UIController {
 
     private Switchboard switchboard;
 
-    // We park the stream of file names here so that multiple functions can consume it, or part of it.
-    private Stream<String> fileNames;
+    // We park the file names here so that multiple functions can consume them, or part of them.
+    private List<String> fileNames;
 
     private final QueryFilter filter = new QueryFilter();
 
@@ -421,7 +420,7 @@ public class UIController {
      * Note: This method can cause issues if called while the UI is still setting up; at the earliest it should be called towards the end of the initialize() method.
      */
     public void updateDirTree() {
-        List<String> directories = switchboard.getDirectories(filter).sorted().collect(Collectors.toList());
+        List<String> directories = switchboard.getDirectories(filter);
 
         // Set the treeview's root directory to a new Directory item with no path
         DirectoryTreeItem treeRoot = new DirectoryTreeItem(null);
@@ -454,7 +453,7 @@ public class UIController {
         lsv_fileDisplay.getItems().clear();
 
         if (fileNames != null) {
-            lsv_fileDisplay.getItems().addAll(fileNames.collect(Collectors.toList()));
+            lsv_fileDisplay.getItems().addAll(fileNames);
         }
     }
 
@@ -474,6 +473,15 @@ public class UIController {
         }
     }
 
+    /**
+     * Re-runs the current query after files have changed outside of the application.
+     */
+    public void notifyBackendChanged() {
+        if (waitingForSwap) return;
+        fileNames = switchboard.search(filter);
+        displayFiles();
+    }
+
     /**
      * Creates and shows the user a dialog when there is no available backend.
      */